@@ -3,11 +3,16 @@ package com.albermonte.plugins.blemessaging;
 import android.Manifest;
 import android.os.Build;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.util.Base64;
 import android.util.Log;
 
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.Plugin;
 import com.getcapacitor.PluginCall;
@@ -16,9 +21,14 @@ import com.getcapacitor.PermissionState;
 import com.getcapacitor.annotation.CapacitorPlugin;
 import com.getcapacitor.annotation.Permission;
 import com.getcapacitor.annotation.PermissionCallback;
+import java.nio.charset.StandardCharsets;
+import org.json.JSONException;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 @CapacitorPlugin(name = "BLEMessaging", permissions = {
         @Permission(alias = "BLUETOOTH", strings = {
@@ -51,6 +61,18 @@ public class BLEMessagingPlugin extends Plugin implements BLEMessagingCallback {
     private UUID serviceUUID;
     private Boolean isPeripheral;
     private Long scanTimeout = 30000L;
+    private int scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+    private long reportDelay = 0;
+    private long deviceTimeout = CentralController.DEFAULT_DEVICE_TTL;
+    private ScanFilterOptions scanFilter = new ScanFilterOptions();
+    private Boolean writeWithoutResponse = true;
+    private Boolean useL2cap = true;
+    private int compressionLevel = 0;
+    private int compressionThreshold = PayloadCompressor.DEFAULT_THRESHOLD;
+    private byte[] compressionDictionary = null;
+    // Hands events to JS in order, so a slow listener never holds up a BLE
+    // callback or another connection's thread
+    private final ExecutorService events = Executors.newSingleThreadExecutor();
 
     private void initializePeripheral(PluginCall call) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
@@ -115,6 +137,21 @@ public class BLEMessagingPlugin extends Plugin implements BLEMessagingCallback {
     public void startScan(PluginCall call) {
         isPeripheral = false;
         getOptionsVariables(call);
+        var mode = getScanMode(call);
+        if (mode == null) {
+            return;
+        }
+        scanMode = mode;
+        reportDelay = Math.max(0, call.getInt("reportDelay", 0));
+        var timeout = call.getInt("deviceTimeout");
+        deviceTimeout = timeout != null && timeout > 0
+                ? timeout * 1000L
+                : CentralController.DEFAULT_DEVICE_TTL;
+        var filter = getScanFilter(call);
+        if (filter == null) {
+            return;
+        }
+        scanFilter = filter;
         initializeCentral(call);
     }
 
@@ -182,18 +219,19 @@ public class BLEMessagingPlugin extends Plugin implements BLEMessagingCallback {
             call.reject("Message is required");
             return;
         }
+        var priority = getMessagePriority(call);
+        if (priority == null) {
+            return;
+        }
+        SendCallback sendCallback = createSendCallback(call);
         try {
             if (isPeripheral && peripheralImplementation != null) {
-                if (peripheralImplementation.sendMessage(uuid, message)) {
-                    call.resolve();
-                } else {
+                if (!peripheralImplementation.sendMessage(uuid, message, priority, sendCallback)) {
                     call.reject("Unable to send message");
                 }
                 return;
             } else if (!isPeripheral && centralImplementation != null) {
-                if (centralImplementation.sendMessage(uuid, message)) {
-                    call.resolve();
-                } else {
+                if (!centralImplementation.sendMessage(uuid, message, priority, sendCallback)) {
                     call.reject("Unable to send message");
                 }
                 return;
@@ -205,6 +243,276 @@ public class BLEMessagingPlugin extends Plugin implements BLEMessagingCallback {
         }
     }
 
+    @PluginMethod
+    public void sendData(PluginCall call) {
+        var uuid = call.getString("to");
+        if (uuid == null) {
+            call.reject("UUID to is required");
+            return;
+        }
+        var encoded = call.getString("data");
+        if (encoded == null) {
+            call.reject("Data is required");
+            return;
+        }
+        // Only the bridge sees base64, the bytes are sent as is
+        byte[] data;
+        try {
+            data = Base64.decode(encoded, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            call.reject("Data must be base64 encoded");
+            return;
+        }
+        var priority = getMessagePriority(call);
+        if (priority == null) {
+            return;
+        }
+        SendCallback sendCallback = createSendCallback(call);
+        try {
+            if (isPeripheral && peripheralImplementation != null) {
+                if (!peripheralImplementation.sendData(uuid, data, priority, sendCallback)) {
+                    call.reject("Unable to send data");
+                }
+                return;
+            } else if (!isPeripheral && centralImplementation != null) {
+                if (!centralImplementation.sendData(uuid, data, priority, sendCallback)) {
+                    call.reject("Unable to send data");
+                }
+                return;
+            } else {
+                call.reject("Plugin not initialized.");
+            }
+        } catch (Exception e) {
+            call.reject("Error sending data: " + e.getMessage());
+        }
+    }
+
+    @PluginMethod
+    public void broadcastMessage(PluginCall call) {
+        var message = call.getString("message");
+        if (message == null) {
+            call.reject("Message is required");
+            return;
+        }
+        var priority = getMessagePriority(call);
+        if (priority == null) {
+            return;
+        }
+        if (!isPeripheral || peripheralImplementation == null) {
+            call.reject("Broadcasting requires advertising");
+            return;
+        }
+        try {
+            boolean queued = peripheralImplementation.broadcastMessage(message, priority, results -> {
+                JSArray devices = new JSArray();
+                for (var entry : results.entrySet()) {
+                    JSObject device = new JSObject();
+                    device.put("uuid", entry.getKey());
+                    device.put("sent", entry.getValue() == null);
+                    if (entry.getValue() != null) {
+                        device.put("error", entry.getValue());
+                    }
+                    devices.put(device);
+                }
+                JSObject ret = new JSObject();
+                ret.put("results", devices);
+                call.resolve(ret);
+            });
+            if (!queued) {
+                call.reject("Unable to broadcast message");
+            }
+        } catch (Exception e) {
+            call.reject("Error broadcasting message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return One of ScanSettings.SCAN_MODE_*, low latency if the call has
+     *         none, or null after rejecting the call
+     */
+    private Integer getScanMode(PluginCall call) {
+        var modeName = call.getString("scanMode", "lowLatency");
+        switch (modeName) {
+            case "lowLatency":
+                return ScanSettings.SCAN_MODE_LOW_LATENCY;
+            case "balanced":
+                return ScanSettings.SCAN_MODE_BALANCED;
+            case "lowPower":
+                return ScanSettings.SCAN_MODE_LOW_POWER;
+            case "opportunistic":
+                return ScanSettings.SCAN_MODE_OPPORTUNISTIC;
+            default:
+                call.reject("Invalid scan mode: " + modeName);
+                return null;
+        }
+    }
+
+    /**
+     * @return The filters of a startScan call, or null after rejecting the
+     *         call
+     */
+    private ScanFilterOptions getScanFilter(PluginCall call) {
+        var filter = new ScanFilterOptions();
+        try {
+            var minRssi = call.getInt("minRssi");
+            if (minRssi != null) {
+                filter.setMinRssi(minRssi);
+            }
+            var deviceUUIDs = call.getArray("deviceUUIDs");
+            if (deviceUUIDs != null) {
+                try {
+                    List<String> uuids = deviceUUIDs.toList();
+                    filter.setAllowedDevices(uuids);
+                } catch (JSONException | ClassCastException e) {
+                    call.reject("Device UUIDs must be strings");
+                    return null;
+                }
+            }
+            var manufacturerData = call.getObject("manufacturerData");
+            if (manufacturerData != null) {
+                var companyId = manufacturerData.getInteger("companyId");
+                if (companyId == null) {
+                    call.reject("Manufacturer data companyId is required");
+                    return null;
+                }
+                filter.setManufacturerData(companyId, decodeFilterBytes(manufacturerData.getString("data")),
+                        decodeFilterBytes(manufacturerData.getString("mask")));
+            }
+            var serviceData = call.getObject("serviceData");
+            if (serviceData != null) {
+                var uuid = parseUuidString(serviceData.getString("uuid"));
+                if (uuid == null) {
+                    call.reject("Invalid service data UUID");
+                    return null;
+                }
+                filter.setServiceData(uuid, decodeFilterBytes(serviceData.getString("data")),
+                        decodeFilterBytes(serviceData.getString("mask")));
+            }
+        } catch (ClassCastException e) {
+            call.reject("Invalid scan filter: " + e.getMessage());
+            return null;
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+            return null;
+        }
+        return filter;
+    }
+
+    /**
+     * @return The bytes of a base64 filter option, null if not given
+     */
+    private static byte[] decodeFilterBytes(String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        try {
+            return Base64.decode(encoded, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Filter data and mask must be base64 encoded");
+        }
+    }
+
+    /**
+     * @return One of MessageEngine.PRIORITY_*, normal if the call has none,
+     *         or null after rejecting the call
+     */
+    private Integer getMessagePriority(PluginCall call) {
+        var priorityName = call.getString("priority", "normal");
+        switch (priorityName) {
+            case "realtime":
+                return MessageEngine.PRIORITY_REALTIME;
+            case "normal":
+                return MessageEngine.PRIORITY_NORMAL;
+            case "bulk":
+                return MessageEngine.PRIORITY_BULK;
+            default:
+                call.reject("Invalid priority: " + priorityName);
+                return null;
+        }
+    }
+
+    /**
+     * Resolves the call once the stack has sent the last chunk
+     */
+    private SendCallback createSendCallback(PluginCall call) {
+        return new SendCallback() {
+            @Override
+            public void onSent() {
+                call.resolve();
+            }
+
+            @Override
+            public void onError(String error) {
+                call.reject("Unable to send message: " + error);
+            }
+        };
+    }
+
+    @PluginMethod
+    public void setLinkProfile(PluginCall call) {
+        var uuid = call.getString("uuid");
+        if (uuid == null) {
+            call.reject("UUID is required");
+            return;
+        }
+
+        Integer priority = null;
+        var priorityName = call.getString("priority");
+        if (priorityName != null) {
+            switch (priorityName) {
+                case "high":
+                    priority = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+                    break;
+                case "balanced":
+                    priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+                    break;
+                case "lowPower":
+                    priority = BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+                    break;
+                default:
+                    call.reject("Invalid priority: " + priorityName);
+                    return;
+            }
+        }
+
+        Integer phy = null;
+        var phyName = call.getString("phy");
+        if (phyName != null) {
+            switch (phyName) {
+                case "1M":
+                    phy = BluetoothDevice.PHY_LE_1M_MASK;
+                    break;
+                case "2M":
+                    phy = BluetoothDevice.PHY_LE_2M_MASK;
+                    break;
+                case "coded":
+                    phy = BluetoothDevice.PHY_LE_CODED_MASK;
+                    break;
+                default:
+                    call.reject("Invalid PHY: " + phyName);
+                    return;
+            }
+        }
+
+        var autoBulkTransfer = call.getBoolean("autoBulkTransfer");
+        try {
+            if (isPeripheral && peripheralImplementation != null) {
+                if (priority != null) {
+                    Log.d(TAG, "Connection priority can only be requested by the central, ignoring it");
+                }
+                peripheralImplementation.setLinkProfile(uuid, phy, autoBulkTransfer);
+                call.resolve();
+            } else if (!isPeripheral && centralImplementation != null) {
+                centralImplementation.setLinkProfile(uuid, priority, phy, autoBulkTransfer);
+                call.resolve();
+            } else {
+                call.reject("Plugin not initialized.");
+            }
+        } catch (Exception e) {
+            call.reject("Error setting link profile: " + e.getMessage());
+        }
+    }
+
     private void getOptionsVariables(PluginCall call) {
         var uuid = call.getString("serviceUUID");
         if (uuid == null) {
@@ -222,6 +530,19 @@ public class BLEMessagingPlugin extends Plugin implements BLEMessagingCallback {
         if (timeout != null) {
             scanTimeout = timeout * 1000L;
         }
+
+        writeWithoutResponse = call.getBoolean("writeWithoutResponse", true);
+        useL2cap = call.getBoolean("useL2cap", true);
+        compressionLevel = Math.max(0, Math.min(9, call.getInt("compressionLevel", 0)));
+        compressionThreshold = call.getInt("compressionThreshold", PayloadCompressor.DEFAULT_THRESHOLD);
+        var dictionary = call.getString("compressionDictionary");
+        compressionDictionary = dictionary != null && !dictionary.isEmpty()
+                ? dictionary.getBytes(StandardCharsets.UTF_8)
+                : null;
+        if (compressionDictionary != null && compressionLevel == 0) {
+            // A dictionary is pointless without compression
+            compressionLevel = PayloadCompressor.DEFAULT_LEVEL;
+        }
     }
 
     private void runInitialization(PluginCall call) {
@@ -252,6 +573,8 @@ public class BLEMessagingPlugin extends Plugin implements BLEMessagingCallback {
         if (isPeripheral) {
             peripheralImplementation = new PeripheralController(getContext(), bluetoothManager, bluetoothAdapter,
                     serviceUUID, this);
+            peripheralImplementation.setUseL2cap(useL2cap);
+            peripheralImplementation.setCompression(compressionLevel, compressionThreshold, compressionDictionary);
             Log.d(TAG, "PeripheralController implementation initialized");
             if (peripheralImplementation.startAdvertising()) {
                 call.resolve();
@@ -260,6 +583,11 @@ public class BLEMessagingPlugin extends Plugin implements BLEMessagingCallback {
             }
         } else {
             centralImplementation = new CentralController(getContext(), bluetoothAdapter, serviceUUID, this);
+            centralImplementation.setWriteWithoutResponse(writeWithoutResponse);
+            centralImplementation.setUseL2cap(useL2cap);
+            centralImplementation.setCompression(compressionLevel, compressionThreshold, compressionDictionary);
+            centralImplementation.setScanSettings(scanMode, reportDelay, deviceTimeout);
+            centralImplementation.setScanFilter(scanFilter);
             Log.d(TAG, "CentralController implementation initialized");
             if (centralImplementation.startScan(scanTimeout)) {
                 call.resolve();
@@ -291,7 +619,11 @@ public class BLEMessagingPlugin extends Plugin implements BLEMessagingCallback {
 
     @Override
     public void notifyEvent(String eventName, JSObject data) {
-        notifyListeners(eventName, data);
+        try {
+            events.execute(() -> notifyListeners(eventName, data));
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Plugin destroyed, dropping " + eventName);
+        }
     }
 
     @PluginMethod
@@ -308,6 +640,17 @@ public class BLEMessagingPlugin extends Plugin implements BLEMessagingCallback {
         call.resolve(data);
     }
 
+    @PluginMethod
+    public void getNearbyDevices(PluginCall call) {
+        if (centralImplementation == null) {
+            call.reject("Plugin not initialized.");
+            return;
+        }
+        JSObject data = new JSObject();
+        data.put("devices", centralImplementation.getNearbyDevices(Math.max(0, call.getInt("limit", 0))));
+        call.resolve(data);
+    }
+
     @PluginMethod
     public void cleanup(PluginCall call) {
         if (centralImplementation != null) {
@@ -327,6 +670,7 @@ public class BLEMessagingPlugin extends Plugin implements BLEMessagingCallback {
         if (peripheralImplementation != null) {
             peripheralImplementation.cleanup();
         }
+        events.shutdown();
         super.handleOnDestroy();
     }
 }
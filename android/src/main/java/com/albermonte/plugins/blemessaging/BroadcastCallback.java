@@ -0,0 +1,13 @@
+package com.albermonte.plugins.blemessaging;
+
+import java.util.Map;
+
+public interface BroadcastCallback {
+  /**
+   * Called once the message has been sent to every central or failed
+   *
+   * @param results Error for each central UUID, null for those the message
+   *                was sent to
+   */
+  void onComplete(Map<String, String> results);
+}
@@ -0,0 +1,55 @@
+package com.albermonte.plugins.blemessaging;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recycles the byte arrays used to reassemble incoming messages. Arrays are
+ * bucketed by power of two capacity so a released buffer can serve any later
+ * request of up to the same size.
+ */
+public class BufferPool {
+  private static final int MIN_CAPACITY_SHIFT = 6; // 64 bytes
+  private static final int BUCKETS = 15; // Up to 1 MB
+  private static final int MAX_POOLED_PER_BUCKET = 4;
+
+  private final List<ArrayDeque<byte[]>> buckets = new ArrayList<>(BUCKETS);
+
+  public BufferPool() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets.add(new ArrayDeque<>());
+    }
+  }
+
+  /**
+   * @return An array of at least minCapacity bytes, its contents are undefined
+   */
+  public synchronized byte[] acquire(int minCapacity) {
+    int bucket = bucketFor(minCapacity);
+    if (bucket >= BUCKETS) {
+      return new byte[minCapacity];
+    }
+    byte[] buffer = buckets.get(bucket).poll();
+    return buffer != null ? buffer : new byte[1 << (bucket + MIN_CAPACITY_SHIFT)];
+  }
+
+  /**
+   * Returns an array obtained from acquire so it can be reused
+   */
+  public synchronized void release(byte[] buffer) {
+    int bucket = bucketFor(buffer.length);
+    // Only arrays whose size is exactly a bucket capacity are pooled
+    if (bucket < BUCKETS && buffer.length == 1 << (bucket + MIN_CAPACITY_SHIFT)
+        && buckets.get(bucket).size() < MAX_POOLED_PER_BUCKET) {
+      buckets.get(bucket).push(buffer);
+    }
+  }
+
+  private static int bucketFor(int capacity) {
+    if (capacity <= 1 << MIN_CAPACITY_SHIFT) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_CAPACITY_SHIFT;
+  }
+}
@@ -12,6 +12,8 @@ import android.bluetooth.BluetoothGattServer;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothSocket;
+import android.bluetooth.BluetoothStatusCodes;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
@@ -23,40 +25,61 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.location.LocationManager;
 import android.os.Build;
-import android.os.ParcelUuid;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 
 import androidx.core.app.ActivityCompat;
 
+import com.albermonte.plugins.blemessaging.GattOperationQueue.Callback;
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CentralController {
   private static final String TAG = "BLEMessaging/Central";
+  // Devices not seen for this long are reported lost
+  public static final long DEFAULT_DEVICE_TTL = 10000;
+  // Scan results are reported to JS at most this often
+  private static final long SCAN_EVENT_INTERVAL = 500;
   private final UUID serviceUUID;
   private final Context context;
   private final BLEMessagingCallback callback;
 
   private final BluetoothAdapter bluetoothAdapter;
   private BluetoothGattServer bluetoothGattServer;
-  private BluetoothGatt bluetoothGattClient;
   private BluetoothLeAdvertiser advertiser;
   private BluetoothLeScanner bleScanner;
   private Boolean isScanning = false;
 
-  private final List<BluetoothDevice> foundDevices = new ArrayList<>();
-  private final List<BluetoothDevice> connectedDevices = new ArrayList<>();
-
-  private String pendingMessage = null;
-  private int messageIndex = 0;
-  private String currentDeviceUuid = null;
-
-  private final List<String> receivingMessage = new ArrayList<>();
+  private final ScanCache foundDevices = new ScanCache(DEFAULT_DEVICE_TTL);
+  private final PeerRegistry connectedDevices = new PeerRegistry();
+  // One of ScanSettings.SCAN_MODE_*
+  private volatile int scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+  // Milliseconds the controller may hold results to deliver them in batches
+  private volatile long reportDelay = 0;
+  private volatile ScanFilterOptions scanFilter = new ScanFilterOptions();
+  // Flushes the scan cache, a new scan stops the flushes of the previous one
+  private final Scheduler scanEvents = new HandlerScheduler(new Handler(Looper.getMainLooper()));
+  private volatile int scanGeneration = 0;
+  // One GATT client per peripheral, keyed by device UUID
+  private final Map<String, PeerConnection> connections = new ConcurrentHashMap<>();
+
+  // Write frames with WRITE_TYPE_NO_RESPONSE unless the stack pushes back
+  private volatile boolean writeWithoutResponse = true;
+  // Open an L2CAP channel to peripherals that publish a PSM
+  private volatile boolean useL2cap = true;
+  // Deflates outgoing messages for peripherals that advertise support
+  private volatile PayloadCompressor compressor = null;
 
   public CentralController(Context context, BluetoothAdapter bluetoothAdapter,
       UUID uuid, BLEMessagingCallback callback) {
@@ -68,6 +91,46 @@ public class CentralController {
     Log.d(CentralController.TAG, "Initialized CentralController");
   }
 
+  public void setWriteWithoutResponse(boolean writeWithoutResponse) {
+    this.writeWithoutResponse = writeWithoutResponse;
+  }
+
+  public void setUseL2cap(boolean useL2cap) {
+    this.useL2cap = useL2cap;
+  }
+
+  /**
+   * @param level      Deflate level from 1 to 9, 0 disables compression
+   * @param threshold  Messages shorter than this many bytes are sent as is,
+   *                   unless they are deflated against the dictionary
+   * @param dictionary Preset dictionary, used with peers that advertise the
+   *                   same one. Null for none.
+   */
+  public void setCompression(int level, int threshold, byte[] dictionary) {
+    this.compressor = level > 0 ? new PayloadCompressor(level, threshold, dictionary) : null;
+  }
+
+  /**
+   * @param scanMode    One of ScanSettings.SCAN_MODE_*
+   * @param reportDelay Milliseconds the Bluetooth controller may hold results
+   *                    to deliver them in batches, 0 for each result as it
+   *                    comes. Ignored without hardware batching.
+   * @param deviceTtl   Milliseconds after which a device no longer seen is
+   *                    reported lost
+   */
+  public void setScanSettings(int scanMode, long reportDelay, long deviceTtl) {
+    this.scanMode = scanMode;
+    this.reportDelay = reportDelay;
+    foundDevices.setTtl(deviceTtl);
+  }
+
+  /**
+   * Applies from the next startScan
+   */
+  public void setScanFilter(ScanFilterOptions scanFilter) {
+    this.scanFilter = scanFilter;
+  }
+
   public boolean startScan(Long timeout) {
     if (isScanning) {
       Log.d(TAG, "Already scanning");
@@ -97,23 +160,26 @@ public class CentralController {
 
     // Create scan filters
     List<ScanFilter> filters = new ArrayList<>();
-    ScanFilter filter = new ScanFilter.Builder()
-        .setServiceUuid(new ParcelUuid(serviceUUID))
-        .build();
-    filters.add(filter);
+    filters.add(scanFilter.toScanFilter(serviceUUID));
 
     // Configure scan settings
-    ScanSettings settings = new ScanSettings.Builder()
-        .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-        .build();
+    ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(scanMode);
+    if (reportDelay > 0) {
+      if (bluetoothAdapter.isOffloadedScanBatchingSupported()) {
+        settings.setReportDelay(reportDelay);
+      } else {
+        Log.d(TAG, "Scan batching not supported, reporting each result");
+      }
+    }
 
     // Start scan
     if (ActivityCompat.checkSelfPermission(context,
         Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
       throw new RuntimeException("BLUETOOTH_SCAN permission missing");
     }
-    bleScanner.startScan(filters, settings, scanCallback);
+    bleScanner.startScan(filters, settings.build(), scanCallback);
     isScanning = true;
+    scheduleScanFlush(++scanGeneration);
     if (callback != null) {
       callback.notifyEvent("onScanStarted", null);
     }
@@ -139,6 +205,9 @@ public class CentralController {
       }
       bleScanner.stopScan(scanCallback);
       isScanning = false;
+      scanGeneration++;
+      // Report what is pending, devices stay known for connectToDeviceByUUID
+      flushScanResults(false);
       if (callback != null) {
         callback.notifyEvent("onScanStopped", null);
       }
@@ -154,13 +223,7 @@ public class CentralController {
       throw new RuntimeException("No devices found");
     }
 
-    BluetoothDevice deviceToConnect = null;
-    for (BluetoothDevice device : foundDevices) {
-      if (Utils.getDeviceUUID(device.getAddress()).equals(uuid)) {
-        deviceToConnect = device;
-        break;
-      }
-    }
+    BluetoothDevice deviceToConnect = foundDevices.get(uuid);
     if (deviceToConnect != null) {
       connectToDevice(deviceToConnect);
       Log.d(TAG, "Connecting to " + uuid);
@@ -171,166 +234,302 @@ public class CentralController {
     }
   }
 
-  public boolean sendMessage(String uuid, String message) {
-    if (bluetoothGattClient == null) {
-      Log.e(TAG, "Client not connected");
-      throw new RuntimeException("Client not connected");
+  /**
+   * Queues a message for a connected peripheral. Messages to the same
+   * peripheral are sent in turns, a frame each when the peripheral supports
+   * interleaving and one after the other otherwise; each frame write goes through
+   * the connection's GATT operation queue, and is sent again until
+   * acknowledged if the peripheral supports it. Large messages go through the
+   * L2CAP channel instead when one is open, and may then overtake smaller
+   * messages still queued on GATT.
+   *
+   * @param priority One of MessageEngine.PRIORITY_*, realtime messages are
+   *                 sent ahead of the others and never over L2CAP
+   * @return false if the message could not be queued, otherwise the outcome
+   *         is reported through sendCallback
+   */
+  public boolean sendMessage(String uuid, String message, int priority, SendCallback sendCallback) {
+    if (message == null || message.isEmpty()) {
+      Log.e(TAG, "Invalid message");
+      throw new RuntimeException("Invalid message");
+    }
+    return send(uuid, message.getBytes(StandardCharsets.UTF_8), false, priority, sendCallback);
+  }
+
+  /**
+   * Queues raw bytes for a connected peripheral, sent like sendMessage but
+   * without any text encoding
+   */
+  public boolean sendData(String uuid, byte[] data, int priority, SendCallback sendCallback) {
+    if (data == null || data.length == 0) {
+      Log.e(TAG, "Invalid data");
+      throw new RuntimeException("Invalid data");
     }
+    return send(uuid, data, true, priority, sendCallback);
+  }
 
+  private boolean send(String uuid, byte[] payload, boolean binary, int priority, SendCallback sendCallback) {
     if (uuid == null || uuid.isEmpty()) {
       Log.e(TAG, "Invalid UUID");
       throw new RuntimeException("Invalid UUID");
     }
 
-    if (message == null || message.isEmpty()) {
-      Log.e(TAG, "Invalid message");
-      throw new RuntimeException("Invalid message");
-    }
-
-    if (!Utils.isDeviceConnected(uuid, connectedDevices, context)) {
+    PeerConnection connection = connections.get(uuid);
+    if (connection == null || !connectedDevices.contains(uuid)) {
       Log.e(TAG, "Device not connected");
       throw new RuntimeException("Device not connected");
     }
 
-    // Set up the chunked message sending
-    pendingMessage = message;
-    messageIndex = 0;
-    currentDeviceUuid = uuid;
-
-    Log.d(TAG, "Sending message: " + message + " to " + uuid);
-    // Start sending the first chunk
-    return sendNextChunk();
+    // Encoded and queued on the connection's thread, off the plugin thread
+    return connection.thread.post(() -> deliver(connection, payload, binary, priority, sendCallback));
   }
 
-  private boolean sendNextChunk() {
-    Log.d(TAG, "Sending next chunk to " + currentDeviceUuid);
-    if (pendingMessage == null || currentDeviceUuid == null) {
-      return false;
-    }
+  /**
+   * Sends a message through the L2CAP channel when it is large and one is
+   * open, through GATT otherwise. Runs on the connection's thread.
+   */
+  private void deliver(PeerConnection connection, byte[] payload, boolean binary, int priority,
+      SendCallback sendCallback) {
+    L2capChannel channel = connection.l2capChannel;
+    // Realtime messages stay on GATT rather than wait behind L2CAP writes
+    if (payload.length >= Utils.L2CAP_TRANSFER_THRESHOLD && priority != MessageEngine.PRIORITY_REALTIME
+        && channel != null && !channel.isClosed()) {
+      Log.d(TAG, "Sending " + payload.length + " bytes to " + connection.uuid + " over L2CAP");
+      MessageEngine.Payload encoded = connection.engine.encode(payload, binary);
+      channel.send(encoded.data, encoded.flags, new SendCallback() {
+        @Override
+        public void onSent() {
+          if (sendCallback != null) {
+            sendCallback.onSent();
+          }
+        }
 
-    Log.d(TAG, "Sending next chunk" + " (" + (messageIndex) + "/" + pendingMessage.length() + ")");
-    // Check if we're done with the message
-    if (messageIndex >= pendingMessage.length()) {
-      // Send EOM marker
-      sendEOMMarker();
-      return true;
+        @Override
+        public void onError(String error) {
+          Log.e(TAG, error + ", falling back to GATT");
+          if (!connection.thread.post(() -> queueMessage(connection, payload, binary, priority, sendCallback))
+              && sendCallback != null) {
+            sendCallback.onError("Device disconnected");
+          }
+        }
+      });
+      return;
     }
+    queueMessage(connection, payload, binary, priority, sendCallback);
+  }
 
-    BluetoothGattService service = bluetoothGattClient.getService(serviceUUID);
-    if (service == null) {
-      Log.e(TAG, "Service not found");
-      return false;
+  private void queueMessage(PeerConnection connection, byte[] payload, boolean binary, int priority,
+      SendCallback sendCallback) {
+    Log.d(TAG, "Queueing " + payload.length + " bytes for " + connection.uuid);
+    if (payload.length >= Utils.BULK_TRANSFER_THRESHOLD) {
+      // Queued ahead of the frame writes so the link is fast before they start
+      startBulkTransfer(connection);
     }
-
-    BluetoothGattCharacteristic messageChar = service.getCharacteristic(Utils.MESSAGE_CHAR_UUID);
-    if (messageChar == null) {
-      Log.e(TAG, "Characteristic not found");
-      return false;
+    try {
+      connection.engine.send(payload, binary, priority, sendCallback);
+    } catch (RuntimeException e) {
+      if (sendCallback != null) {
+        sendCallback.onError(e.getMessage());
+      }
     }
+  }
 
-    // Calculate chunk size
-    int endIndex = Math.min(messageIndex + Utils.MAX_CHUNK_SIZE, pendingMessage.length());
-    String chunk = pendingMessage.substring(messageIndex, endIndex);
+  /**
+   * Sets the connection priority and preferred PHY used with a peripheral
+   *
+   * @param priority         One of BluetoothGatt.CONNECTION_PRIORITY_*, null
+   *                         to keep the current one
+   * @param phy              One of BluetoothDevice.PHY_LE_*_MASK, null to
+   *                         keep the current one
+   * @param autoBulkTransfer Whether large messages temporarily switch the link
+   *                         to high priority and 2M PHY, null to keep the
+   *                         current setting
+   */
+  public boolean setLinkProfile(String uuid, Integer priority, Integer phy, Boolean autoBulkTransfer) {
+    PeerConnection connection = connections.get(uuid);
+    if (connection == null) {
+      Log.e(TAG, "Device not connected");
+      throw new RuntimeException("Device not connected");
+    }
+    if (phy != null && !Utils.isPhySupported(bluetoothAdapter, phy)) {
+      throw new RuntimeException("PHY not supported");
+    }
 
-    // Update the message index for next chunk
-    messageIndex = endIndex;
+    boolean bulkTransfer;
+    synchronized (connection) {
+      if (priority != null) {
+        connection.linkPriority = priority;
+      }
+      if (phy != null) {
+        connection.linkPhy = phy;
+      }
+      if (autoBulkTransfer != null) {
+        connection.autoBulkTransfer = autoBulkTransfer;
+      }
+      bulkTransfer = connection.bulkTransfer;
+    }
+    // During a bulk transfer the profile is applied once it ends
+    if (!bulkTransfer) {
+      applyLinkProfile(connection, priority, phy);
+    }
+    return true;
+  }
 
-    Log.d(TAG, "Sending chunk: " + chunk + " (" + (messageIndex) + "/" + pendingMessage.length() + ")");
+  private void startBulkTransfer(PeerConnection connection) {
+    synchronized (connection) {
+      if (!connection.autoBulkTransfer || connection.bulkTransfer) {
+        return;
+      }
+      connection.bulkTransfer = true;
+    }
+    Log.d(TAG, "Starting bulk transfer to " + connection.uuid);
+    boolean use2M = Utils.isPhySupported(bluetoothAdapter, BluetoothDevice.PHY_LE_2M_MASK);
+    applyLinkProfile(connection, BluetoothGatt.CONNECTION_PRIORITY_HIGH,
+        use2M ? BluetoothDevice.PHY_LE_2M_MASK : null);
+  }
 
-    // Send the chunk
-    messageChar.setValue(chunk.getBytes(StandardCharsets.UTF_8));
+  private void endBulkTransfer(PeerConnection connection) {
+    int priority;
+    int phy;
+    synchronized (connection) {
+      if (!connection.bulkTransfer) {
+        return;
+      }
+      connection.bulkTransfer = false;
+      priority = connection.linkPriority;
+      phy = connection.linkPhy;
+    }
+    Log.d(TAG, "Bulk transfer to " + connection.uuid + " done");
+    boolean used2M = Utils.isPhySupported(bluetoothAdapter, BluetoothDevice.PHY_LE_2M_MASK);
+    applyLinkProfile(connection, priority, used2M ? phy : null);
+  }
 
+  private void applyLinkProfile(PeerConnection connection, Integer priority, Integer phy) {
     if (ActivityCompat.checkSelfPermission(context,
         Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
       throw new RuntimeException("BLUETOOTH_CONNECT permission missing");
     }
+    if (connection.gatt == null) {
+      // connectGatt has not returned yet, there is no link to adjust
+      return;
+    }
+    if (priority != null) {
+      // No callback reports the new connection parameters
+      connection.operations.enqueue(() -> {
+        if (!connection.gatt.requestConnectionPriority(priority)) {
+          Log.e(TAG, "Unable to request connection priority " + priority);
+        }
+        return false;
+      });
+    }
+    if (phy != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      connection.operations.enqueue(Callback.PHY, null, () -> {
+        connection.gatt.setPreferredPhy(phy, phy, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        return true;
+      });
+    }
+  }
 
-    boolean success = bluetoothGattClient.writeCharacteristic(messageChar);
+  public boolean disconnectDevice(String uuid) {
+    PeerConnection connection = connections.get(uuid);
+    if (connection == null) {
+      Log.d(TAG, "Device not found or not connected: " + uuid);
+      return false;
+    }
 
-    if (!success) {
-      Log.e(TAG, "Failed to write characteristic");
-      // Reset sending state
-      pendingMessage = null;
-      messageIndex = 0;
-      currentDeviceUuid = null;
+    if (ActivityCompat.checkSelfPermission(context,
+        Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+      return false;
+    }
+    BluetoothGatt gatt = connection.gatt;
+    if (gatt == null) {
+      Log.d(TAG, "Still connecting to " + uuid);
       return false;
     }
+    gatt.disconnect();
     return true;
   }
 
-  private void sendEOMMarker() {
-    BluetoothGattService service = bluetoothGattClient.getService(serviceUUID);
-    if (service == null) {
-      Log.e(TAG, "Service not found");
-      return;
-    }
+  private void scheduleScanFlush(int generation) {
+    scanEvents.schedule(() -> {
+      if (generation != scanGeneration) {
+        return;
+      }
+      flushScanResults(true);
+      scheduleScanFlush(generation);
+    }, SCAN_EVENT_INTERVAL);
+  }
 
-    BluetoothGattCharacteristic messageChar = service.getCharacteristic(Utils.MESSAGE_CHAR_UUID);
-    if (messageChar == null) {
-      Log.e(TAG, "Characteristic not found");
+  /**
+   * Reports the devices found, seen again or lost since the last call: an
+   * onDeviceFound event for each new device, and a single onDevicesChanged
+   * event with all of them
+   *
+   * @param evict Whether devices not seen for the TTL are lost
+   */
+  private void flushScanResults(boolean evict) {
+    ScanCache.Changes changes = foundDevices.flush(SystemClock.elapsedRealtime(), evict);
+    if (changes.isEmpty() || callback == null) {
       return;
     }
-
-    Log.d(TAG, "Sending EOM marker");
-
-    messageChar.setValue(Utils.EOM_MARKER.getBytes(StandardCharsets.UTF_8));
-
-    if (ActivityCompat.checkSelfPermission(context,
-        Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-      throw new RuntimeException("BLUETOOTH_CONNECT permission missing");
+    for (ScanCache.Entry entry : changes.found) {
+      Log.d(TAG, "Found device: " + entry.uuid);
+      JSObject ret = new JSObject();
+      ret.put("uuid", entry.uuid);
+      callback.notifyEvent("onDeviceFound", ret);
     }
-
-    boolean success = bluetoothGattClient.writeCharacteristic(messageChar);
-
-    // Reset sending state regardless of success
-    pendingMessage = null;
-    messageIndex = 0;
-    currentDeviceUuid = null;
+    JSObject ret = new JSObject();
+    ret.put("found", getScanEntries(changes.found));
+    ret.put("updated", getScanEntries(changes.updated));
+    JSArray lost = new JSArray();
+    for (String uuid : changes.lost) {
+      lost.put(uuid);
+    }
+    ret.put("lost", lost);
+    callback.notifyEvent("onDevicesChanged", ret);
   }
 
-  public boolean disconnectDevice(String uuid) {
-    if (bluetoothGattClient == null) {
-      Log.e(TAG, "No GATT connection to disconnect");
-      return false;
+  private JSArray getScanEntries(List<ScanCache.Entry> entries) {
+    JSArray array = new JSArray();
+    for (ScanCache.Entry entry : entries) {
+      JSObject device = new JSObject();
+      device.put("uuid", entry.uuid);
+      device.put("rssi", Math.round(entry.getSmoothedRssi()));
+      device.put("connected", connectedDevices.contains(entry.uuid));
+      array.put(device);
     }
+    return array;
+  }
 
-    BluetoothDevice deviceToDisconnect = null;
-    for (BluetoothDevice device : connectedDevices) {
-      if (Utils.getDeviceUUID(device.getAddress()).equals(uuid)) {
-        deviceToDisconnect = device;
-        break;
-      }
-    }
+  /**
+   * @param limit Maximum number of devices returned, 0 for all of them
+   * @return Devices seen recently, nearest first by smoothed signal strength
+   */
+  public JSArray getNearbyDevices(int limit) {
+    return getScanEntries(foundDevices.nearest(SystemClock.elapsedRealtime(), limit));
+  }
 
-    if (deviceToDisconnect != null) {
-      if (ActivityCompat.checkSelfPermission(context,
-          Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-        return false;
-      }
-      bluetoothGattClient.disconnect();
-      return true;
-    } else {
-      Log.d(TAG, "Device not found or not connected: " + uuid);
-      return false;
+  private void addScanResult(ScanResult result) {
+    // Filtered out results never reach the cache, so never reach JS either
+    if (!scanFilter.accepts(result)) {
+      return;
     }
+    // Only the cache is updated here, JS hears about it on the next flush
+    foundDevices.onResult(result.getDevice(), result.getRssi(), result.getTimestampNanos() / 1000000);
   }
 
   private final ScanCallback scanCallback = new ScanCallback() {
     @Override
     public void onScanResult(int callbackType, ScanResult result) {
       super.onScanResult(callbackType, result);
-      BluetoothDevice device = result.getDevice();
-
-      if (foundDevices.contains(device)) {
-        return;
-      }
-      foundDevices.add(device);
+      addScanResult(result);
+    }
 
-      Log.d(TAG, "Found device: " + Utils.getDeviceUUID(device.getAddress()));
-      if (callback != null) {
-        JSObject ret = new JSObject();
-        ret.put("uuid", Utils.getDeviceUUID(device.getAddress()));
-        callback.notifyEvent("onDeviceFound", ret);
+    @Override
+    public void onBatchScanResults(List<ScanResult> results) {
+      super.onBatchScanResults(results);
+      for (ScanResult result : results) {
+        addScanResult(result);
       }
     }
 
@@ -350,74 +549,199 @@ public class CentralController {
     public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
       super.onConnectionStateChange(gatt, status, newState);
       BluetoothDevice device = gatt.getDevice();
+      PeerConnection connection = getConnection(gatt);
+      if (ActivityCompat.checkSelfPermission(context,
+          Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+        throw new RuntimeException("BLUETOOTH_CONNECT permission missing");
+      }
+      if (connection == null) {
+        // Stale client, its connection was replaced or cleaned up
+        gatt.close();
+        return;
+      }
       if (newState == BluetoothProfile.STATE_CONNECTED) {
-        Log.d(TAG, "Connected");
-        if (ActivityCompat.checkSelfPermission(context,
-            Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-          throw new RuntimeException("BLUETOOTH_CONNECT permission missing");
-        }
+        Log.d(TAG, "Connected to " + connection.uuid);
         connectedDevices.add(device);
-        gatt.discoverServices();
-        if (callback != null) {
-          JSObject ret = new JSObject();
-          ret.put("uuid", Utils.getDeviceUUID(device.getAddress()));
-          callback.notifyEvent("onDeviceConnected", ret);
-        }
+        // Negotiate the MTU first, services are discovered once it settles
+        connection.thread.post(() -> connection.operations.enqueue(Callback.MTU, null, () -> {
+          if (gatt.requestMtu(Utils.MAX_MTU)) {
+            return true;
+          }
+          Log.e(TAG, "Unable to request MTU, using default");
+          onMtuNegotiated(connection, Utils.DEFAULT_MTU);
+          return false;
+        }, () -> onMtuNegotiated(connection, Utils.DEFAULT_MTU)));
       } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-        Log.d(TAG, "Disconnected");
+        Log.d(TAG, "Disconnected from " + connection.uuid);
         connectedDevices.remove(device);
-        if (callback != null) {
-          JSObject ret = new JSObject();
-          ret.put("uuid", Utils.getDeviceUUID(device.getAddress()));
-          callback.notifyEvent("onDeviceDisconnected", ret);
-        }
+        // Free the client slot, other connections are left untouched
+        connections.remove(connection.uuid, connection);
+        connection.thread.post(() -> {
+          connection.operations.clear();
+          connection.engine.close("Device disconnected");
+          connection.reliableTransport.close();
+          closeL2capChannel(connection);
+          gatt.close();
+          if (callback != null) {
+            JSObject ret = new JSObject();
+            ret.put("uuid", connection.uuid);
+            callback.notifyEvent("onDeviceDisconnected", ret);
+          }
+        });
+        connection.thread.quit();
       }
     }
 
     @Override
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
       super.onServicesDiscovered(gatt, status);
-      if (status == BluetoothGatt.GATT_SUCCESS) {
-        BluetoothGattService service = gatt.getService(serviceUUID);
-        if (service != null) {
-          BluetoothGattCharacteristic messageChar = service.getCharacteristic(Utils.MESSAGE_CHAR_UUID);
-          if (messageChar != null) {
-            enableNotifications(gatt, messageChar);
-          }
+      PeerConnection connection = getConnection(gatt);
+      if (connection != null) {
+        connection.thread.post(() -> onServicesDiscovered(connection, status));
+      }
+    }
+
+    private void onServicesDiscovered(PeerConnection connection, int status) {
+      if (!connection.operations.claim(Callback.SERVICES, null)) {
+        return;
+      }
+      BluetoothGatt gatt = connection.gatt;
+      BluetoothGattService service = status == BluetoothGatt.GATT_SUCCESS ? gatt.getService(serviceUUID) : null;
+      BluetoothGattCharacteristic capabilitiesChar = service != null
+          ? service.getCharacteristic(Utils.CAPABILITIES_CHAR_UUID)
+          : null;
+      if (capabilitiesChar != null) {
+        // Learn what the peripheral supports, then tell it what we do before
+        // subscribing, so it knows how to talk to us by then
+        connection.operations.enqueue(Callback.READ, Utils.CAPABILITIES_CHAR_UUID,
+            () -> gatt.readCharacteristic(capabilitiesChar), () -> onPeerCapabilities(connection, null));
+        connection.operations.enqueue(Callback.WRITE, Utils.CAPABILITIES_CHAR_UUID,
+            () -> writeCapabilities(connection, capabilitiesChar));
+      } else {
+        // Older peripherals, iOS included, only take text ended by EOM
+        onPeerCapabilities(connection, null);
+      }
+      if (service != null) {
+        BluetoothGattCharacteristic messageChar = service.getCharacteristic(Utils.MESSAGE_CHAR_UUID);
+        if (messageChar != null) {
+          connection.operations.enqueue(Callback.DESCRIPTOR_WRITE, Utils.CCCD_UUID,
+              () -> enableNotifications(gatt, messageChar));
+        }
+        BluetoothGattCharacteristic psmChar = service.getCharacteristic(Utils.PSM_CHAR_UUID);
+        if (psmChar != null && useL2cap && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+          connection.operations.enqueue(Callback.READ, Utils.PSM_CHAR_UUID, () -> gatt.readCharacteristic(psmChar));
+        }
+      }
+      connection.operations.complete(Callback.SERVICES, null);
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+      super.onCharacteristicRead(gatt, characteristic, status);
+      PeerConnection connection = getConnection(gatt);
+      if (connection == null) {
+        return;
+      }
+      // The characteristic is reused by later reads, keep this value
+      byte[] value = characteristic.getValue();
+      connection.thread.post(() -> onCharacteristicRead(connection, characteristic.getUuid(), value, status));
+    }
+
+    private void onCharacteristicRead(PeerConnection connection, UUID characteristicUUID, byte[] value,
+        int status) {
+      if (!connection.operations.claim(Callback.READ, characteristicUUID)) {
+        return;
+      }
+      if (Utils.CAPABILITIES_CHAR_UUID.equals(characteristicUUID)) {
+        if (status == BluetoothGatt.GATT_SUCCESS && value != null && value.length >= 1) {
+          onPeerCapabilities(connection, value);
+        } else {
+          // Ours are not written either, so both sides fall back to EOM
+          Log.e(TAG, "Unable to read capabilities: " + status);
+          onPeerCapabilities(connection, null);
+        }
+      } else if (Utils.PSM_CHAR_UUID.equals(characteristicUUID)) {
+        if (status == BluetoothGatt.GATT_SUCCESS && value != null && value.length >= 2) {
+          openL2capChannel(connection, (value[0] & 0xFF) | (value[1] & 0xFF) << 8);
+        } else {
+          Log.e(TAG, "Unable to read PSM: " + status);
         }
       }
+      connection.operations.complete(Callback.READ, characteristicUUID);
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+      super.onDescriptorWrite(gatt, descriptor, status);
+      PeerConnection connection = getConnection(gatt);
+      if (connection == null) {
+        return;
+      }
+      if (status != BluetoothGatt.GATT_SUCCESS) {
+        Log.e(TAG, "Descriptor write failed: " + status);
+      }
+      UUID descriptorUUID = descriptor.getUuid();
+      connection.thread.post(() -> {
+        if (connection.operations.claim(Callback.DESCRIPTOR_WRITE, descriptorUUID)) {
+          connection.operations.complete(Callback.DESCRIPTOR_WRITE, descriptorUUID);
+        }
+      });
     }
 
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
       super.onCharacteristicChanged(gatt, characteristic);
       byte[] data = characteristic.getValue();
-      if (data != null) {
-        String message = new String(data);
-        Log.d(TAG, "Received message: " + message);
-        if (message.equals(Utils.EOM_MARKER)) {
-          if (callback != null) {
-            JSObject ret = new JSObject();
-            ret.put("from", Utils.getDeviceUUID(gatt.getDevice().getAddress()));
-            ret.put("message", String.join("", receivingMessage));
-            callback.notifyEvent("onMessageReceived", ret);
-          }
-          receivingMessage.clear();
-        } else {
-          receivingMessage.add(message);
-        }
+      PeerConnection connection = getConnection(gatt);
+      if (data == null || connection == null) {
+        return;
+      }
+      connection.thread.post(() -> connection.transport.onFrameReceived(data));
+    }
+
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+      super.onPhyUpdate(gatt, txPhy, rxPhy, status);
+      PeerConnection connection = getConnection(gatt);
+      if (connection == null) {
+        return;
+      }
+      if (status == BluetoothGatt.GATT_SUCCESS) {
+        Log.d(TAG, "PHY updated for " + connection.uuid + ": tx " + txPhy + ", rx " + rxPhy);
+      } else {
+        Log.e(TAG, "PHY update failed with status: " + status);
       }
+      // Also reported for updates the peripheral or the controller started
+      connection.thread.post(() -> {
+        if (connection.operations.claim(Callback.PHY, null)) {
+          connection.operations.complete(Callback.PHY, null);
+        }
+      });
     }
 
     @Override
     public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
       super.onMtuChanged(gatt, mtu, status);
+      PeerConnection connection = getConnection(gatt);
+      if (connection == null) {
+        return;
+      }
 
       if (status == BluetoothGatt.GATT_SUCCESS) {
-        Log.d("BLE", "Negotiated MTU size: " + mtu);
+        Log.d(TAG, "Negotiated MTU size: " + mtu);
       } else {
-        Log.e("BLE", "MTU negotiation failed with status: " + status);
+        Log.e(TAG, "MTU negotiation failed with status: " + status);
       }
+      int negotiated = status == BluetoothGatt.GATT_SUCCESS ? mtu : Utils.DEFAULT_MTU;
+      connection.thread.post(() -> {
+        // A late or unrequested change still applies, unless it failed
+        if (connection.operations.claim(Callback.MTU, null)) {
+          onMtuNegotiated(connection, negotiated);
+          connection.operations.complete(Callback.MTU, null);
+        } else if (status == BluetoothGatt.GATT_SUCCESS) {
+          onMtuNegotiated(connection, negotiated);
+        }
+      });
     }
 
     @Override
@@ -425,50 +749,228 @@ public class CentralController {
         BluetoothGattCharacteristic characteristic,
         int status) {
       super.onCharacteristicWrite(gatt, characteristic, status);
+      PeerConnection connection = getConnection(gatt);
+      if (connection == null) {
+        return;
+      }
 
-      if (status == BluetoothGatt.GATT_SUCCESS) {
-        // If we have more chunks to send, send the next one
-        if (pendingMessage != null && messageIndex <= pendingMessage.length()) {
-          sendNextChunk();
+      if (Utils.CAPABILITIES_CHAR_UUID.equals(characteristic.getUuid())) {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+          Log.e(TAG, "Capabilities write failed: " + status);
         }
-      } else {
-        Log.e(TAG, "Write characteristic failed: " + status);
-        // Reset sending state
-        pendingMessage = null;
-        messageIndex = 0;
-        currentDeviceUuid = null;
+        connection.thread.post(() -> {
+          if (connection.operations.claim(Callback.WRITE, Utils.CAPABILITIES_CHAR_UUID)) {
+            connection.operations.complete(Callback.WRITE, Utils.CAPABILITIES_CHAR_UUID);
+          }
+        });
+        return;
       }
+      connection.thread.post(() -> connection.transport.onFrameWritten(status));
     }
   };
 
+  /**
+   * Sends the messages held until the peripheral's capabilities are known
+   *
+   * @param value Capabilities read from the peripheral, null if it has none
+   */
+  private void onPeerCapabilities(PeerConnection connection, byte[] value) {
+    // Before the held messages go out, so their frames are numbered
+    connection.reliableTransport.setEnabled(value != null && value.length >= 1
+        && (value[0] & MessageEngine.CAPABILITY_ARQ) != 0);
+    connection.reliableTransport.setPassThrough(value == null);
+    connection.engine.setPeerCapabilities(value);
+    if (value != null) {
+      Log.d(TAG, "Capabilities of " + connection.uuid + ": " + (value[0] & 0xFF)
+          + (connection.engine.hasSharedDictionary() ? ", shared dictionary" : ""));
+    } else {
+      Log.d(TAG, connection.uuid + " predates framing, sending text ended by EOM");
+    }
+  }
+
+  private void onMtuNegotiated(PeerConnection connection, int mtu) {
+    connection.transport.setMtu(mtu);
+    if (connection.mtuNegotiated) {
+      return;
+    }
+    connection.mtuNegotiated = true;
+
+    if (ActivityCompat.checkSelfPermission(context,
+        Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+      throw new RuntimeException("BLUETOOTH_CONNECT permission missing");
+    }
+    // Without services the peer is treated as legacy, which releases held
+    // messages so that they fail instead of waiting forever
+    connection.operations.enqueue(Callback.SERVICES, null, () -> connection.gatt.discoverServices(),
+        () -> onPeerCapabilities(connection, null));
+    if (callback != null) {
+      JSObject ret = new JSObject();
+      ret.put("uuid", connection.uuid);
+      ret.put("mtu", mtu);
+      callback.notifyEvent("onDeviceConnected", ret);
+    }
+  }
+
+  private void openL2capChannel(PeerConnection connection, int psm) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || psm <= 0) {
+      return;
+    }
+    if (ActivityCompat.checkSelfPermission(context,
+        Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+      throw new RuntimeException("BLUETOOTH_CONNECT permission missing");
+    }
+    BluetoothSocket socket;
+    try {
+      socket = connection.device.createInsecureL2capChannel(psm);
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to create L2CAP channel: " + e.getMessage());
+      return;
+    }
+    Log.d(TAG, "Opening L2CAP channel to " + connection.uuid + " on PSM " + psm);
+    L2capChannel channel = new L2capChannel(socket, true, getDictionary(), new L2capChannel.Listener() {
+      @Override
+      public void onMessage(L2capChannel channel, IncomingMessage message) {
+        notifyMessage(connection.uuid, message);
+      }
+
+      @Override
+      public void onClosed(L2capChannel channel) {
+        // Later large messages go through GATT
+        if (connection.l2capChannel == channel) {
+          connection.l2capChannel = null;
+        }
+      }
+    });
+    connection.l2capChannel = channel;
+    channel.start();
+  }
+
+  private byte[] getDictionary() {
+    PayloadCompressor compressor = this.compressor;
+    return compressor != null ? compressor.getDictionary() : null;
+  }
+
+  private void notifyMessage(String uuid, IncomingMessage message) {
+    if (callback != null) {
+      callback.notifyEvent("onMessageReceived", Utils.getMessageEvent(uuid, message));
+    }
+  }
+
+  private void closeL2capChannel(PeerConnection connection) {
+    L2capChannel channel = connection.l2capChannel;
+    connection.l2capChannel = null;
+    if (channel != null) {
+      channel.close();
+    }
+  }
+
+  /**
+   * @return The pooled connection a GATT callback belongs to, or null if the
+   *         client is no longer in the pool
+   */
+  private PeerConnection getConnection(BluetoothGatt gatt) {
+    PeerConnection connection = connections.get(Utils.getDeviceUUID(gatt.getDevice().getAddress()));
+    return connection != null && connection.attach(gatt) ? connection : null;
+  }
+
   private void connectToDevice(BluetoothDevice device) {
     if (ActivityCompat.checkSelfPermission(context,
         Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
         return;
     }
-    
-    // Close existing connection if present
-    if (bluetoothGattClient != null) {
-        bluetoothGattClient.close();
-        bluetoothGattClient = null;
+
+    String uuid = Utils.getDeviceUUID(device.getAddress());
+    if (connections.containsKey(uuid)) {
+      Log.d(TAG, "Already connected or connecting to: " + uuid);
+      return;
+    }
+
+    // Other peripherals keep their own connection
+    Log.d(TAG, "Connecting to: " + uuid);
+    PeerConnection connection = new PeerConnection(context, device, uuid, serviceUUID, writeWithoutResponse,
+        new MessageEngine.Listener() {
+          @Override
+          public void onMessage(IncomingMessage message) {
+            notifyMessage(uuid, message);
+          }
+
+          @Override
+          public void onError(String error) {
+            Log.e(TAG, error);
+          }
+
+          @Override
+          public void onIdle() {
+            PeerConnection current = connections.get(uuid);
+            if (current != null) {
+              // Nothing left to send, drop back to the regular link profile
+              endBulkTransfer(current);
+            }
+          }
+        });
+    connection.engine.setCompressor(compressor);
+    // Released once the services are discovered, see onPeerCapabilities
+    connection.engine.awaitPeerCapabilities();
+    // Pooled before connecting, callbacks may arrive before connectGatt
+    // returns
+    connections.put(uuid, connection);
+    BluetoothGatt gatt;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+      gatt = device.connectGatt(context, false, gattCallback, BluetoothDevice.TRANSPORT_LE);
+    } else {
+      gatt = device.connectGatt(context, false, gattCallback);
+    }
+    if (gatt == null) {
+      connections.remove(uuid, connection);
+      connection.thread.quit();
+      throw new RuntimeException("Unable to connect to " + uuid);
+    }
+    if (!connection.attach(gatt) || connections.get(uuid) != connection) {
+      // Cleaned up while connecting
+      gatt.close();
     }
-    
-    Log.d(TAG, "Connecting to: " + Utils.getDeviceUUID(device.getAddress()));
-    bluetoothGattClient = device.connectGatt(context, false, gattCallback);
   }
 
-  private void enableNotifications(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+  /**
+   * @return true if a characteristic write was started, see
+   *         GattOperationQueue
+   */
+  private boolean writeCapabilities(PeerConnection connection, BluetoothGattCharacteristic characteristic) {
     if (ActivityCompat.checkSelfPermission(context,
         Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-      return;
+      return false;
+    }
+    if (connection.engine.isLegacyPeer()) {
+      // The read failed, the peripheral then treats us as legacy too
+      return false;
+    }
+    BluetoothGatt gatt = connection.gatt;
+    byte[] value = MessageEngine.encodeCapabilities(compressor);
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+      return gatt.writeCharacteristic(characteristic, value,
+          BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) == BluetoothStatusCodes.SUCCESS;
+    }
+    characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    characteristic.setValue(value);
+    return gatt.writeCharacteristic(characteristic);
+  }
+
+  /**
+   * @return true if a descriptor write was started, see GattOperationQueue
+   */
+  private boolean enableNotifications(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+    if (ActivityCompat.checkSelfPermission(context,
+        Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+      return false;
     }
     gatt.setCharacteristicNotification(characteristic, true);
 
     BluetoothGattDescriptor descriptor = characteristic.getDescriptor(Utils.CCCD_UUID);
     if (descriptor != null) {
       descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-      gatt.writeDescriptor(descriptor);
+      return gatt.writeDescriptor(descriptor);
     }
+    return false;
   }
 
   private static boolean isLocationEnabled(Context context) {
@@ -492,24 +994,31 @@ public class CentralController {
   public void cleanup() {
     // Stop scanning if needed
     stopScan();
-    
-    // Close GATT connection
-    if (bluetoothGattClient != null) {
-        if (ActivityCompat.checkSelfPermission(context,
-            Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-            return;
+
+    // Close every GATT connection
+    if (!connections.isEmpty()) {
+      if (ActivityCompat.checkSelfPermission(context,
+          Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+        return;
+      }
+      for (PeerConnection connection : connections.values()) {
+        connection.operations.clear();
+        connection.engine.close("Central cleaned up");
+        connection.reliableTransport.close();
+        closeL2capChannel(connection);
+        BluetoothGatt gatt = connection.gatt;
+        if (gatt != null) {
+          // Otherwise closed by connectToDevice once connectGatt returns
+          gatt.close();
         }
-        bluetoothGattClient.close();
-        bluetoothGattClient = null;
+        connection.thread.quit();
+      }
+      connections.clear();
     }
-    
+
     // Clear data
     foundDevices.clear();
     connectedDevices.clear();
-    receivingMessage.clear();
-    pendingMessage = null;
-    currentDeviceUuid = null;
-    messageIndex = 0;
     Log.d(TAG, "CentralController cleaned up");
   }
 }
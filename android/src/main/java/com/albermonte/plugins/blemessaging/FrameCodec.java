@@ -0,0 +1,139 @@
+package com.albermonte.plugins.blemessaging;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary header placed in front of every chunk written or notified on the
+ * message characteristic.
+ *
+ * <pre>
+ * byte 0      flags
+ * bytes 1-2   message id (unsigned, big endian)
+ * bytes 3-4   sequence number of the frame within the message
+ * bytes 5-8   total payload length of the message, only on FLAG_FIRST frames
+ * </pre>
+ *
+ * Peers that predate the header, the iOS implementation included, never
+ * advertise capabilities. They exchange bare UTF-8 chunks instead, each
+ * message followed by an EOM_MARKER packet.
+ */
+public final class FrameCodec {
+  public static final int FLAG_FIRST = 0x01; // First frame, carries the total length
+  public static final int FLAG_LAST = 0x02; // Last frame of the message
+  public static final int FLAG_BINARY = 0x04; // Raw bytes rather than UTF-8 text, set on the first frame
+  public static final int FLAG_COMPRESSED = 0x08; // Payload is deflated, set on the first frame
+  public static final int FLAG_DICTIONARY = 0x10; // Deflated against the shared dictionary, with FLAG_COMPRESSED
+  // Bits of the first frame that describe the whole message payload
+  public static final int MESSAGE_FLAGS = FLAG_BINARY | FLAG_COMPRESSED | FLAG_DICTIONARY;
+
+  public static final int HEADER_SIZE = 5;
+  public static final int FIRST_HEADER_SIZE = HEADER_SIZE + 4;
+  public static final int MAX_MESSAGE_ID = 0xFFFF;
+  public static final int MAX_SEQUENCE = 0xFFFF;
+  // Ends a message sent to or by a peer that predates the header
+  public static final String EOM_MARKER = "EOM";
+  private static final byte[] EOM_BYTES = EOM_MARKER.getBytes(StandardCharsets.UTF_8);
+
+  private FrameCodec() {
+  }
+
+  /**
+   * Builds a frame around a slice of the message payload
+   *
+   * @param flags       FLAG_* bits for this frame
+   * @param messageId   Id shared by every frame of the message
+   * @param sequence    Position of this frame within the message
+   * @param totalLength Payload length of the whole message, only written when
+   *                    FLAG_FIRST is set
+   * @return The encoded frame
+   */
+  public static byte[] encode(int flags, int messageId, int sequence, int totalLength,
+      byte[] payload, int offset, int length) {
+    int headerSize = getHeaderSize(flags);
+    byte[] frame = new byte[headerSize + length];
+    frame[0] = (byte) flags;
+    frame[1] = (byte) (messageId >>> 8);
+    frame[2] = (byte) messageId;
+    frame[3] = (byte) (sequence >>> 8);
+    frame[4] = (byte) sequence;
+    if ((flags & FLAG_FIRST) != 0) {
+      frame[5] = (byte) (totalLength >>> 24);
+      frame[6] = (byte) (totalLength >>> 16);
+      frame[7] = (byte) (totalLength >>> 8);
+      frame[8] = (byte) totalLength;
+    }
+    System.arraycopy(payload, offset, frame, headerSize, length);
+    return frame;
+  }
+
+  /**
+   * @return true if the data is long enough to hold the header its flags
+   *         announce
+   */
+  public static boolean isValid(byte[] frame) {
+    return frame != null && frame.length >= HEADER_SIZE && frame.length >= getHeaderSize(frame[0]);
+  }
+
+  /**
+   * @return A new EOM_MARKER packet
+   */
+  public static byte[] encodeEomMarker() {
+    return EOM_BYTES.clone();
+  }
+
+  public static boolean isEomMarker(byte[] packet) {
+    return Arrays.equals(packet, EOM_BYTES);
+  }
+
+  public static int getHeaderSize(int flags) {
+    return (flags & FLAG_FIRST) != 0 ? FIRST_HEADER_SIZE : HEADER_SIZE;
+  }
+
+  public static int getFlags(byte[] frame) {
+    return frame[0] & 0xFF;
+  }
+
+  public static boolean isFirst(byte[] frame) {
+    return (frame[0] & FLAG_FIRST) != 0;
+  }
+
+  public static boolean isLast(byte[] frame) {
+    return (frame[0] & FLAG_LAST) != 0;
+  }
+
+  public static boolean isBinary(byte[] frame) {
+    return (frame[0] & FLAG_BINARY) != 0;
+  }
+
+  public static boolean isCompressed(byte[] frame) {
+    return (frame[0] & FLAG_COMPRESSED) != 0;
+  }
+
+  public static int getMessageId(byte[] frame) {
+    return ((frame[1] & 0xFF) << 8) | (frame[2] & 0xFF);
+  }
+
+  public static int getSequence(byte[] frame) {
+    return ((frame[3] & 0xFF) << 8) | (frame[4] & 0xFF);
+  }
+
+  /**
+   * @return The total payload length of the message, or -1 if this is not the
+   *         first frame
+   */
+  public static int getTotalLength(byte[] frame) {
+    if (!isFirst(frame)) {
+      return -1;
+    }
+    return ((frame[5] & 0xFF) << 24) | ((frame[6] & 0xFF) << 16) | ((frame[7] & 0xFF) << 8) | (frame[8] & 0xFF);
+  }
+
+  public static int getPayloadOffset(byte[] frame) {
+    return getHeaderSize(frame[0]);
+  }
+
+  public static int getPayloadLength(byte[] frame) {
+    return frame.length - getPayloadOffset(frame);
+  }
+}
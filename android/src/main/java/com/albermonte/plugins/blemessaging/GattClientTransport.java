@@ -0,0 +1,189 @@
+package com.albermonte.plugins.blemessaging;
+
+import android.Manifest;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothStatusCodes;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.core.app.ActivityCompat;
+
+import java.util.UUID;
+
+/**
+ * Sends frames to a peripheral as writes to its message characteristic,
+ * through the connection's GATT operation queue. Frames are written without
+ * response unless the stack pushes back, in which case the rest of the
+ * message uses acknowledged writes. An acknowledged write the stack refuses
+ * is retried shortly after, like NotificationScheduler does with busy
+ * notifications, and only fails the frame once the retries run out.
+ */
+class GattClientTransport implements Transport {
+  private static final String TAG = "BLEMessaging/Central";
+  // Attempts of an acknowledged write refused by the stack before it fails
+  private static final int MAX_BUSY_RETRIES = 50;
+  private static final long BUSY_RETRY_DELAY = 10;
+
+  private final Context context;
+  private volatile BluetoothGatt gatt;
+  private final UUID serviceUUID;
+  private final GattOperationQueue operations;
+  private final Scheduler scheduler;
+  private final boolean writeWithoutResponse;
+  private volatile Listener listener;
+  private volatile int mtu = Utils.DEFAULT_MTU;
+  // Set when a write without response is refused, until the last frame of
+  // the message is written
+  private volatile boolean acknowledgedWrites = false;
+  // Frame waiting to retry a refused write, null once it went through or
+  // timed out
+  private volatile byte[] retryingPacket = null;
+
+  /**
+   * @param scheduler Runs the write retries, on the connection's thread
+   */
+  GattClientTransport(Context context, UUID serviceUUID, GattOperationQueue operations, Scheduler scheduler,
+      boolean writeWithoutResponse) {
+    this.context = context;
+    this.serviceUUID = serviceUUID;
+    this.operations = operations;
+    this.scheduler = scheduler;
+    this.writeWithoutResponse = writeWithoutResponse;
+  }
+
+  /**
+   * Set before the first frame, once the client is known
+   */
+  void setGatt(BluetoothGatt gatt) {
+    this.gatt = gatt;
+  }
+
+  void setMtu(int mtu) {
+    this.mtu = mtu;
+  }
+
+  int getMtu() {
+    return mtu;
+  }
+
+  @Override
+  public int getMaxPacketSize() {
+    return Utils.getMaxPayloadSize(mtu);
+  }
+
+  @Override
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public boolean send(byte[] packet) {
+    operations.enqueue(GattOperationQueue.Callback.WRITE, Utils.MESSAGE_CHAR_UUID, () -> write(packet), () -> {
+      retryingPacket = null;
+      acknowledgedWrites = false;
+      listener.onPacketFailed("Write timed out");
+    });
+    return true;
+  }
+
+  /**
+   * Called from onCharacteristicWrite once the in flight frame is written
+   */
+  void onFrameWritten(int status) {
+    if (!operations.claim(GattOperationQueue.Callback.WRITE, Utils.MESSAGE_CHAR_UUID)) {
+      // Late, the frame was already reported failed when it timed out
+      return;
+    }
+    if (status != BluetoothGatt.GATT_SUCCESS) {
+      Log.e(TAG, "Write characteristic failed: " + status);
+      acknowledgedWrites = false;
+      listener.onPacketFailed("Write failed with status: " + status);
+    } else {
+      listener.onPacketSent();
+    }
+    operations.complete(GattOperationQueue.Callback.WRITE, Utils.MESSAGE_CHAR_UUID);
+  }
+
+  void onFrameReceived(byte[] frame) {
+    listener.onPacketReceived(frame);
+  }
+
+  private boolean write(byte[] packet) {
+    BluetoothGattService service = gatt.getService(serviceUUID);
+    BluetoothGattCharacteristic messageChar = service != null
+        ? service.getCharacteristic(Utils.MESSAGE_CHAR_UUID)
+        : null;
+    if (messageChar == null) {
+      Log.e(TAG, "Characteristic not found");
+      listener.onPacketFailed("Characteristic not found");
+      return false;
+    }
+
+    // Frames may be numbered by ReliableTransport, acknowledgements are not
+    // part of any message
+    int frameOffset = ReliableTransport.getFrameOffset(packet);
+    boolean lastFrame = frameOffset >= 0 && packet.length > frameOffset
+        && (packet[frameOffset] & FrameCodec.FLAG_LAST) != 0;
+    boolean acknowledged = acknowledgedWrites || !writeWithoutResponse;
+    if (lastFrame) {
+      // The next message starts in burst mode again
+      acknowledgedWrites = false;
+    }
+    Log.d(TAG, "Sending packet (" + packet.length + " bytes)");
+
+    if (!acknowledged) {
+      // Burst mode, paced by onCharacteristicWrite as the stack frees buffers
+      if (writeFrame(messageChar, packet, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE)) {
+        return true;
+      }
+      // The stack is backed up, finish this message with acknowledged writes
+      Log.d(TAG, "Write without response refused, falling back to acknowledged writes");
+      acknowledgedWrites = !lastFrame;
+    }
+
+    if (!writeFrame(messageChar, packet, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT)) {
+      // Still backed up, the operation stays current until a retry goes
+      // through
+      retryingPacket = packet;
+      scheduler.schedule(() -> retryWrite(messageChar, packet, 1), BUSY_RETRY_DELAY);
+    }
+    return true;
+  }
+
+  private void retryWrite(BluetoothGattCharacteristic messageChar, byte[] packet, int attempt) {
+    if (retryingPacket != packet) {
+      // Timed out or disconnected in the meantime
+      return;
+    }
+    if (writeFrame(messageChar, packet, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT)) {
+      retryingPacket = null;
+      return;
+    }
+    if (attempt < MAX_BUSY_RETRIES) {
+      scheduler.schedule(() -> retryWrite(messageChar, packet, attempt + 1), BUSY_RETRY_DELAY);
+      return;
+    }
+    Log.e(TAG, "Failed to write characteristic");
+    retryingPacket = null;
+    acknowledgedWrites = false;
+    listener.onPacketFailed("Failed to write characteristic");
+    operations.complete(GattOperationQueue.Callback.WRITE, Utils.MESSAGE_CHAR_UUID);
+  }
+
+  private boolean writeFrame(BluetoothGattCharacteristic messageChar, byte[] frame, int writeType) {
+    if (ActivityCompat.checkSelfPermission(context,
+        Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+      throw new RuntimeException("BLUETOOTH_CONNECT permission missing");
+    }
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+      return gatt.writeCharacteristic(messageChar, frame, writeType) == BluetoothStatusCodes.SUCCESS;
+    }
+    messageChar.setWriteType(writeType);
+    messageChar.setValue(frame);
+    return gatt.writeCharacteristic(messageChar);
+  }
+}
@@ -0,0 +1,203 @@
+package com.albermonte.plugins.blemessaging;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Serializes the GATT operations of one connection. Android only allows a
+ * single outstanding operation per client, so writes, descriptor writes, MTU
+ * and PHY requests are queued and each one is started as soon as the callback
+ * of the previous one arrives.
+ *
+ * Some stacks drop onMtuChanged, onPhyUpdate or onCharacteristicWrite now and
+ * then, so an operation whose callback does not arrive within
+ * TIMEOUT_MILLIS is failed and the queue moves on rather than wedging the
+ * connection.
+ *
+ * Each operation names the callback that completes it, and callbacks are
+ * claimed before they are acted on. Callbacks nobody waits for are ignored:
+ * PHY or MTU updates started by the peer, and callbacks arriving after their
+ * operation timed out. The first matching callback after a timeout is taken
+ * for the late one.
+ */
+class GattOperationQueue {
+  private static final String TAG = "BLEMessaging/Central";
+  // Time an operation may wait for its callback
+  static final long TIMEOUT_MILLIS = 10000;
+
+  // GATT callbacks that complete an operation
+  enum Callback {
+    MTU, PHY, SERVICES, READ, WRITE, DESCRIPTOR_WRITE
+  }
+
+  interface Operation {
+    /**
+     * Starts the operation
+     *
+     * @return true if it is now waiting for its GATT callback. false if it
+     *         already finished or could not be started, the next operation
+     *         then runs right away.
+     */
+    boolean run();
+  }
+
+  private static final class Entry {
+    final Callback callback;
+    final UUID uuid;
+    final Operation operation;
+    final Runnable onTimeout;
+    // Set when a callback was taken for the late one of a timed out
+    // operation while this one ran, it may have been this one's
+    boolean absorbedLate = false;
+
+    Entry(Callback callback, UUID uuid, Operation operation, Runnable onTimeout) {
+      this.callback = callback;
+      this.uuid = uuid;
+      this.operation = operation;
+      this.onTimeout = onTimeout;
+    }
+
+    boolean matches(Callback callback, UUID uuid) {
+      return this.callback == callback && Objects.equals(this.uuid, uuid);
+    }
+  }
+
+  private final Scheduler scheduler;
+  private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+  private Entry current = null;
+  // Timed out operations whose callback may still arrive, one per callback
+  private final List<Entry> timedOut = new ArrayList<>();
+
+  /**
+   * @param scheduler Runs the timeouts, on the connection's thread
+   */
+  GattOperationQueue(Scheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Queues an operation that never waits for a callback
+   */
+  void enqueue(Operation operation) {
+    enqueue(null, null, operation, null);
+  }
+
+  void enqueue(Callback callback, UUID uuid, Operation operation) {
+    enqueue(callback, uuid, operation, null);
+  }
+
+  /**
+   * @param callback  Callback that completes the operation
+   * @param uuid      Characteristic or descriptor the callback reports, null
+   *                  for MTU, PHY and service discovery
+   * @param onTimeout Run in place of the callback if it does not arrive
+   *                  within TIMEOUT_MILLIS, before the next operation
+   *                  starts. May be null.
+   */
+  void enqueue(Callback callback, UUID uuid, Operation operation, Runnable onTimeout) {
+    synchronized (this) {
+      pending.add(new Entry(callback, uuid, operation, onTimeout));
+      if (current != null) {
+        return;
+      }
+    }
+    runNext();
+  }
+
+  /**
+   * Called from a GATT callback, on the connection's thread, before acting
+   * on it
+   *
+   * @return true if the running operation waits for this callback, it is
+   *         then completed with complete. false if the callback must be
+   *         ignored.
+   */
+  synchronized boolean claim(Callback callback, UUID uuid) {
+    for (Iterator<Entry> iterator = timedOut.iterator(); iterator.hasNext(); ) {
+      if (iterator.next().matches(callback, uuid)) {
+        iterator.remove();
+        if (current != null && current.matches(callback, uuid)) {
+          current.absorbedLate = true;
+        }
+        return false;
+      }
+    }
+    return current != null && current.matches(callback, uuid);
+  }
+
+  /**
+   * Marks the running operation as finished and starts the next one, unless
+   * it does not wait for this callback
+   */
+  void complete(Callback callback, UUID uuid) {
+    synchronized (this) {
+      if (current == null || !current.matches(callback, uuid)) {
+        return;
+      }
+      current = null;
+    }
+    runNext();
+  }
+
+  /**
+   * Drops every queued operation, typically on disconnection
+   */
+  synchronized void clear() {
+    pending.clear();
+    timedOut.clear();
+    current = null;
+  }
+
+  private void runNext() {
+    while (true) {
+      Entry entry;
+      synchronized (this) {
+        if (current != null) {
+          return;
+        }
+        entry = pending.poll();
+        if (entry == null) {
+          return;
+        }
+        current = entry;
+      }
+
+      if (entry.operation.run()) {
+        scheduler.schedule(() -> onTimeout(entry), TIMEOUT_MILLIS);
+        return;
+      }
+      synchronized (this) {
+        if (current == entry) {
+          current = null;
+        }
+      }
+    }
+  }
+
+  private void onTimeout(Entry entry) {
+    synchronized (this) {
+      // Completed, or dropped by clear, in the meantime
+      if (current != entry) {
+        return;
+      }
+      current = null;
+      // Its callback may still come. Not if one was already taken for the
+      // late one of an earlier operation, it was then likely this one's.
+      if (entry.callback != null && !entry.absorbedLate) {
+        timedOut.removeIf(late -> late.matches(entry.callback, entry.uuid));
+        timedOut.add(entry);
+      }
+    }
+    Log.e(TAG, "GATT operation timed out");
+    if (entry.onTimeout != null) {
+      entry.onTimeout.run();
+    }
+    runNext();
+  }
+}
@@ -0,0 +1,116 @@
+package com.albermonte.plugins.blemessaging;
+
+import android.Manifest;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothStatusCodes;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.core.app.ActivityCompat;
+
+/**
+ * Sends frames to a central as notifications of the message characteristic.
+ * Frames go through the server's NotificationScheduler, which notifies them
+ * in turn with those of the other centrals, and the stack reports each one
+ * through onNotificationSent.
+ */
+class GattServerTransport implements Transport {
+  private static final String TAG = "BLEMessaging/Peripheral";
+
+  private final Context context;
+  private final BluetoothGattServer gattServer;
+  private final BluetoothGattCharacteristic messageChar;
+  private final BluetoothDevice device;
+  private final NotificationScheduler notifications;
+  // Thread of the central, failures are reported on it
+  private final Scheduler scheduler;
+  private volatile Listener listener;
+  private volatile int mtu = Utils.DEFAULT_MTU;
+
+  GattServerTransport(Context context, BluetoothGattServer gattServer, BluetoothGattCharacteristic messageChar,
+      BluetoothDevice device, NotificationScheduler notifications, Scheduler scheduler) {
+    this.context = context;
+    this.gattServer = gattServer;
+    this.messageChar = messageChar;
+    this.device = device;
+    this.notifications = notifications;
+    this.scheduler = scheduler;
+  }
+
+  void setMtu(int mtu) {
+    this.mtu = mtu;
+  }
+
+  int getMtu() {
+    return mtu;
+  }
+
+  @Override
+  public int getMaxPacketSize() {
+    return Utils.getMaxPayloadSize(mtu);
+  }
+
+  @Override
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public boolean send(byte[] frame) {
+    notifications.submit(this, frame);
+    return true;
+  }
+
+  /**
+   * Notifies a frame right away, called by the NotificationScheduler
+   *
+   * @return One of NotificationScheduler.NOTIFY_*
+   */
+  int notifyFrame(byte[] frame) {
+    if (ActivityCompat.checkSelfPermission(context,
+        Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+      throw new RuntimeException("BLUETOOTH_CONNECT permission missing");
+    }
+
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+      int status = gattServer.notifyCharacteristicChanged(device, messageChar, false, frame);
+      if (status == BluetoothStatusCodes.SUCCESS) {
+        return NotificationScheduler.NOTIFY_SENT;
+      }
+      Log.d(TAG, "Notification refused with status: " + status);
+      return status == BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY ? NotificationScheduler.NOTIFY_BUSY
+          : NotificationScheduler.NOTIFY_FAILED;
+    }
+    // The characteristic value is shared by every central
+    synchronized (messageChar) {
+      messageChar.setValue(frame);
+      // Older versions do not tell a busy stack from a failure
+      return gattServer.notifyCharacteristicChanged(device, messageChar, false) ? NotificationScheduler.NOTIFY_SENT
+          : NotificationScheduler.NOTIFY_BUSY;
+    }
+  }
+
+  void onNotificationFailed(String error) {
+    // Reported later so the engine is not re-entered from its own send
+    scheduler.schedule(() -> listener.onPacketFailed(error), 0);
+  }
+
+  void onNotificationSent(int status) {
+    notifications.onNotificationSent(this);
+    if (status != BluetoothGatt.GATT_SUCCESS) {
+      Log.e(TAG, "Notification failed with status: " + status);
+      listener.onPacketFailed("Notification failed with status: " + status);
+    } else {
+      listener.onPacketSent();
+    }
+  }
+
+  void onFrameReceived(byte[] frame) {
+    listener.onPacketReceived(frame);
+  }
+}
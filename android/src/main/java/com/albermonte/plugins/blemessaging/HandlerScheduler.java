@@ -0,0 +1,59 @@
+package com.albermonte.plugins.blemessaging;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+/**
+ * Scheduler running its tasks on a Handler's looper
+ */
+class HandlerScheduler implements Scheduler {
+  private final Handler handler;
+  // Started by start, null when running on an existing looper
+  private final HandlerThread thread;
+
+  HandlerScheduler(Handler handler) {
+    this(handler, null);
+  }
+
+  private HandlerScheduler(Handler handler, HandlerThread thread) {
+    this.handler = handler;
+    this.thread = thread;
+  }
+
+  /**
+   * @return Scheduler running its tasks on a new thread, until quit
+   */
+  static HandlerScheduler start(String name) {
+    HandlerThread thread = new HandlerThread(name);
+    thread.start();
+    return new HandlerScheduler(new Handler(thread.getLooper()), thread);
+  }
+
+  @Override
+  public long now() {
+    return SystemClock.uptimeMillis();
+  }
+
+  @Override
+  public void schedule(Runnable task, long delayMillis) {
+    handler.postDelayed(task, delayMillis);
+  }
+
+  /**
+   * @return false if the thread has quit and the task will never run
+   */
+  boolean post(Runnable task) {
+    return handler.post(task);
+  }
+
+  /**
+   * Stops the thread started by start once the tasks already due have run.
+   * Delayed tasks are dropped.
+   */
+  void quit() {
+    if (thread != null) {
+      thread.quitSafely();
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package com.albermonte.plugins.blemessaging;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message received from a peer, either UTF-8 text or raw bytes depending on
+ * how it was sent.
+ */
+public final class IncomingMessage {
+  private final String text;
+  private final byte[] data;
+
+  private IncomingMessage(String text, byte[] data) {
+    this.text = text;
+    this.data = data;
+  }
+
+  /**
+   * Builds a message from a reassembly buffer, which may be reused afterwards
+   *
+   * @param flags      FrameCodec.MESSAGE_FLAGS bits of the message
+   * @param maxLength  Largest size a compressed payload may inflate to
+   * @param dictionary Dictionary shared with the peer, null if none
+   * @throws RuntimeException if a compressed payload cannot be inflated
+   */
+  public static IncomingMessage decode(byte[] buffer, int length, int flags, int maxLength, byte[] dictionary) {
+    if ((flags & FrameCodec.FLAG_COMPRESSED) != 0) {
+      if ((flags & FrameCodec.FLAG_DICTIONARY) != 0 && dictionary == null) {
+        throw new RuntimeException("Compressed with a dictionary we do not have");
+      }
+      byte[] inflated = PayloadCompressor.inflate(buffer, 0, length, maxLength,
+          (flags & FrameCodec.FLAG_DICTIONARY) != 0 ? dictionary : null);
+      buffer = inflated;
+      length = inflated.length;
+    }
+    if ((flags & FrameCodec.FLAG_BINARY) != 0) {
+      byte[] data = new byte[length];
+      System.arraycopy(buffer, 0, data, 0, length);
+      return new IncomingMessage(null, data);
+    }
+    return new IncomingMessage(new String(buffer, 0, length, StandardCharsets.UTF_8), null);
+  }
+
+  public boolean isBinary() {
+    return data != null;
+  }
+
+  /**
+   * @return The text of the message, null if it is binary
+   */
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * @return The bytes of the message, null if it is text
+   */
+  public byte[] getData() {
+    return data;
+  }
+}
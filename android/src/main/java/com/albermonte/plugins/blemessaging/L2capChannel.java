@@ -0,0 +1,173 @@
+package com.albermonte.plugins.blemessaging;
+
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * L2CAP connection oriented channel used for large messages. Unlike GATT the
+ * channel is a byte stream with credit based flow control, so a message is
+ * written as a flags byte (FrameCodec.MESSAGE_FLAGS) and a 4 byte length
+ * followed by its payload, straight from the encoded array, and read back
+ * into a pooled buffer.
+ */
+class L2capChannel {
+  private static final String TAG = "BLEMessaging/L2CAP";
+  // Largest message accepted from the peer
+  static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+  interface Listener {
+    void onMessage(L2capChannel channel, IncomingMessage message);
+
+    /**
+     * Called once when the channel is closed, by either side or on error
+     */
+    void onClosed(L2capChannel channel);
+  }
+
+  private final BluetoothSocket socket;
+  private final boolean connect;
+  private final Listener listener;
+  private final byte[] dictionary;
+  private final BufferPool bufferPool = new BufferPool();
+  // Writes and the initial connect run one at a time, in order
+  private final ExecutorService writer = Executors.newSingleThreadExecutor();
+  private volatile boolean closed = false;
+  private DataOutputStream output;
+
+  /**
+   * @param socket     Socket from createInsecureL2capChannel or accept
+   * @param connect    Whether the socket still has to be connected, in which
+   *                   case the connection is made on the writer thread
+   * @param dictionary Compression dictionary shared with the peer, null if
+   *                   none
+   */
+  L2capChannel(BluetoothSocket socket, boolean connect, byte[] dictionary, Listener listener) {
+    this.socket = socket;
+    this.connect = connect;
+    this.dictionary = dictionary;
+    this.listener = listener;
+  }
+
+  /**
+   * Connects the socket if needed and starts reading messages
+   */
+  void start() {
+    writer.execute(() -> {
+      try {
+        if (connect) {
+          socket.connect();
+        }
+        output = new DataOutputStream(socket.getOutputStream());
+        InputStream input = socket.getInputStream();
+        Thread reader = new Thread(() -> readLoop(input), "BLEMessaging-L2CAP-reader");
+        reader.setDaemon(true);
+        reader.start();
+        Log.d(TAG, "Channel open, max packet size " + socket.getMaxTransmitPacketSize());
+      } catch (IOException e) {
+        Log.e(TAG, "Unable to open channel: " + e.getMessage());
+        close();
+      }
+    });
+  }
+
+  /**
+   * Queues a message. Messages are written in the order they are sent.
+   *
+   * @param payload UTF-8 encoded text, raw bytes or deflated payload, written
+   *                as is
+   * @param flags   FrameCodec.MESSAGE_FLAGS bits describing the payload
+   */
+  void send(byte[] payload, int flags, SendCallback callback) {
+    try {
+      writer.execute(() -> write(payload, flags, callback));
+    } catch (RejectedExecutionException e) {
+      if (callback != null) {
+        callback.onError("L2CAP channel closed");
+      }
+    }
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    writer.shutdown();
+    try {
+      socket.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Error closing channel: " + e.getMessage());
+    }
+    listener.onClosed(this);
+  }
+
+  private void write(byte[] payload, int flags, SendCallback callback) {
+    if (closed || output == null) {
+      if (callback != null) {
+        callback.onError("L2CAP channel closed");
+      }
+      return;
+    }
+    try {
+      output.writeByte(flags);
+      output.writeInt(payload.length);
+      output.write(payload);
+      output.flush();
+    } catch (IOException e) {
+      Log.e(TAG, "Write failed: " + e.getMessage());
+      if (callback != null) {
+        callback.onError("L2CAP write failed: " + e.getMessage());
+      }
+      close();
+      return;
+    }
+    if (callback != null) {
+      callback.onSent();
+    }
+  }
+
+  private void readLoop(InputStream stream) {
+    DataInputStream input = new DataInputStream(stream);
+    try {
+      while (!closed) {
+        int flags = input.readUnsignedByte();
+        int length = input.readInt();
+        if (length < 0 || length > MAX_MESSAGE_SIZE) {
+          throw new IOException("Invalid message length: " + length);
+        }
+        IncomingMessage message = null;
+        byte[] buffer = bufferPool.acquire(length);
+        try {
+          input.readFully(buffer, 0, length);
+          message = IncomingMessage.decode(buffer, length, flags, MAX_MESSAGE_SIZE, dictionary);
+        } catch (RuntimeException e) {
+          Log.e(TAG, "Dropping message: " + e.getMessage());
+        } finally {
+          bufferPool.release(buffer);
+        }
+        if (message != null) {
+          listener.onMessage(this, message);
+        }
+      }
+    } catch (IOException e) {
+      if (!closed) {
+        Log.d(TAG, "Channel closed: " + e.getMessage());
+      }
+    }
+    close();
+  }
+}
@@ -0,0 +1,634 @@
+package com.albermonte.plugins.blemessaging;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Framing and queuing for the messages exchanged with one peer, independent of
+ * the link carrying the packets. Outgoing messages are cut into frames one at
+ * a time as the transport reports the previous frame sent, incoming frames
+ * are reassembled into messages.
+ *
+ * With peers that advertise CAPABILITY_MULTIPLEX, up to MAX_INTERLEAVED
+ * messages are sent at once, a frame of each in turn, so a short message
+ * queued behind a large one does not wait for all of it. Messages may then
+ * complete out of order.
+ *
+ * Each message has a priority class. Realtime frames always go first, so a
+ * realtime message preempts the others at the next frame boundary, or at
+ * the next message boundary with peers that do not interleave. Normal and
+ * bulk messages share what is left, NORMAL_WEIGHT frames of normal ones for
+ * each frame of bulk ones.
+ *
+ * Over a transport that confirms delivery, such as an enabled
+ * ReliableTransport, a message is only reported sent once the peer confirms
+ * its last frame, and rejected if the transport gives up first.
+ *
+ * Peers that never advertise capabilities predate FrameCodec and only
+ * exchange text, as bare chunks ended by FrameCodec.EOM_MARKER.
+ */
+public class MessageEngine implements Transport.Listener {
+  // Capability bits exchanged with the peer when connecting
+  public static final int CAPABILITY_DEFLATE = 0x01;
+  // Followed by the 4 byte id of the compression dictionary, big endian
+  public static final int CAPABILITY_DICTIONARY = 0x02;
+  // Acknowledges numbered packets, see ReliableTransport
+  public static final int CAPABILITY_ARQ = 0x04;
+  // Reassembles messages whose frames are interleaved
+  public static final int CAPABILITY_MULTIPLEX = 0x08;
+  // Capabilities of this implementation, whatever its configuration
+  public static final int CAPABILITIES = CAPABILITY_DEFLATE | CAPABILITY_ARQ | CAPABILITY_MULTIPLEX;
+
+  // Messages sent at once, well below what the reassembler accepts
+  public static final int MAX_INTERLEAVED = 4;
+  // Share of the peer's reassembler that only realtime messages may use
+  public static final int REALTIME_RESERVE = 64 * 1024;
+  // Largest message sent, once inflated, leaving the reserve free. Larger
+  // ones can only go over L2CAP.
+  public static final int MAX_MESSAGE_SIZE = MessageReassembler.DEFAULT_MAX_BYTES_IN_FLIGHT - REALTIME_RESERVE;
+
+  // Priority classes, highest first
+  public static final int PRIORITY_REALTIME = 0;
+  public static final int PRIORITY_NORMAL = 1;
+  public static final int PRIORITY_BULK = 2;
+  private static final int PRIORITIES = 3;
+  // Normal frames sent for each bulk frame when both are waiting
+  public static final int NORMAL_WEIGHT = 4;
+  // Messages of each class sent at once, adding up to what the reassembler
+  // accepts. Normal and bulk ones leave REALTIME_RESERVE bytes free, so
+  // realtime messages that fit it never wait for them to finish.
+  private static final int[] MAX_ACTIVE = { 2, MAX_INTERLEAVED, 2 };
+
+  /**
+   * A message payload as it goes on the wire
+   */
+  public static final class Payload {
+    public final byte[] data;
+    // FrameCodec.MESSAGE_FLAGS bits describing the data
+    public final int flags;
+    // Size of the payload before compression
+    public final int length;
+
+    Payload(byte[] data, int flags, int length) {
+      this.data = data;
+      this.flags = flags;
+      this.length = length;
+    }
+  }
+
+  /**
+   * A message whose last frame is sent, until the peer confirms it
+   */
+  private static final class Unconfirmed {
+    final OutgoingMessage message;
+    // Number of its last frame, see confirmableFrames
+    final long frame;
+
+    Unconfirmed(OutgoingMessage message, long frame) {
+      this.message = message;
+      this.frame = frame;
+    }
+  }
+
+  public interface Listener {
+    void onMessage(IncomingMessage message);
+
+    /**
+     * Called when an incoming frame is dropped
+     */
+    void onError(String error);
+
+    /**
+     * Called when the last queued message has been sent
+     */
+    void onIdle();
+  }
+
+  private final String peer;
+  private final Transport transport;
+  private final Listener listener;
+  private final MessageReassembler reassembler = new MessageReassembler();
+  private volatile PayloadCompressor compressor = null;
+  // Unknown until the peer advertises them, older peers never do
+  private volatile int peerCapabilities = 0;
+  // Whether the peer has the same dictionary as the compressor
+  private volatile boolean sharedDictionary = false;
+  // Set while outgoing messages wait for the peer's capabilities
+  private volatile boolean awaitingCapabilities = false;
+  // Whether the peer predates FrameCodec, see setPeerCapabilities
+  private volatile boolean legacy = false;
+  // Text received from a legacy peer since its last EOM_MARKER, guarded by
+  // itself. Dropped up to the next marker once it grows too large.
+  private final ByteArrayOutputStream legacyMessage = new ByteArrayOutputStream();
+  private boolean legacyOverflow = false;
+
+  // Guarded by this, both indexed by priority
+  private final List<ArrayDeque<OutgoingMessage>> pending = new ArrayList<>();
+  // Messages with frames left to send, taking turns within their class
+  private final List<List<OutgoingMessage>> active = new ArrayList<>();
+  private final int[] nextActive = new int[PRIORITIES];
+  private int activeCount = 0;
+  // Total length of the active messages of each class, bounded by the
+  // peer's reassembler
+  private final long[] activeBytes = new long[PRIORITIES];
+  // Normal frames or messages sent since the last bulk one
+  private int normalTurns = 0;
+  // Message of the frame waiting for onPacketSent, null if none
+  private OutgoingMessage current = null;
+  // Whether a frame is waiting for onPacketSent
+  private boolean frameInFlight = false;
+  // Frames sent while the transport confirms delivery, numbered from 1, and
+  // how many of them the peer confirmed
+  private long confirmableFrames = 0;
+  private long deliveredFrames = 0;
+  // Number of the frame in flight, 0 if the peer does not confirm it
+  private long currentFrame = 0;
+  // Oldest first
+  private final ArrayDeque<Unconfirmed> unconfirmed = new ArrayDeque<>();
+  private int nextMessageId = 0;
+
+  /**
+   * @param peer Identifies the peer in error messages
+   */
+  public MessageEngine(String peer, Transport transport, Listener listener) {
+    this.peer = peer;
+    this.transport = transport;
+    this.listener = listener;
+    for (int i = 0; i < PRIORITIES; i++) {
+      pending.add(new ArrayDeque<>());
+      active.add(new ArrayList<>());
+    }
+    transport.setListener(this);
+  }
+
+  /**
+   * @return The value advertising what this side supports: a byte of
+   *         CAPABILITY_* bits, followed by the dictionary id if there is one
+   */
+  public static byte[] encodeCapabilities(PayloadCompressor compressor) {
+    if (compressor == null || !compressor.hasDictionary()) {
+      return new byte[] { (byte) CAPABILITIES };
+    }
+    long id = compressor.getDictionaryId();
+    return new byte[] { (byte) (CAPABILITIES | CAPABILITY_DICTIONARY),
+        (byte) (id >>> 24), (byte) (id >>> 16), (byte) (id >>> 8), (byte) id };
+  }
+
+  /**
+   * @param compressor Applied to messages sent once the peer advertises
+   *                   CAPABILITY_DEFLATE, null to send everything as is. Its
+   *                   dictionary is also used to inflate incoming messages.
+   */
+  public void setCompressor(PayloadCompressor compressor) {
+    this.compressor = compressor;
+    reassembler.setDictionary(compressor != null ? compressor.getDictionary() : null);
+    sharedDictionary = false;
+  }
+
+  /**
+   * Holds outgoing messages until setPeerCapabilities, so that the first
+   * ones are already sent in a format the peer understands
+   */
+  public void awaitPeerCapabilities() {
+    awaitingCapabilities = true;
+  }
+
+  /**
+   * @return false while outgoing messages wait for setPeerCapabilities
+   */
+  public boolean hasPeerCapabilities() {
+    return !awaitingCapabilities;
+  }
+
+  /**
+   * Sends the messages held by awaitPeerCapabilities
+   *
+   * @param value Capabilities advertised by the peer, see encodeCapabilities,
+   *              or null if it has none: it then predates FrameCodec and
+   *              only exchanges text ended by EOM_MARKER
+   */
+  public void setPeerCapabilities(byte[] value) {
+    int capabilities = value != null && value.length >= 1 ? value[0] & 0xFF : 0;
+    boolean shared = false;
+    PayloadCompressor compressor = this.compressor;
+    if ((capabilities & CAPABILITY_DICTIONARY) != 0 && value.length >= 5 && compressor != null
+        && compressor.hasDictionary()) {
+      long id = ((value[1] & 0xFFL) << 24) | ((value[2] & 0xFF) << 16) | ((value[3] & 0xFF) << 8) | (value[4] & 0xFF);
+      shared = id == compressor.getDictionaryId();
+    }
+    List<OutgoingMessage> rejected = new ArrayList<>();
+    synchronized (this) {
+      this.peerCapabilities = capabilities;
+      this.sharedDictionary = shared;
+      this.legacy = value == null;
+      if (legacy) {
+        // Held before the peer turned out to only take text
+        for (ArrayDeque<OutgoingMessage> queue : pending) {
+          Iterator<OutgoingMessage> iterator = queue.iterator();
+          while (iterator.hasNext()) {
+            OutgoingMessage message = iterator.next();
+            if (message.isBinary() || message.isCompressed()) {
+              iterator.remove();
+              rejected.add(message);
+            }
+          }
+        }
+      }
+      awaitingCapabilities = false;
+    }
+    for (OutgoingMessage message : rejected) {
+      if (message.getCallback() != null) {
+        message.getCallback().onError("Peer only supports text messages");
+      }
+    }
+    pump();
+  }
+
+  /**
+   * @return true if the peer predates FrameCodec, see setPeerCapabilities
+   */
+  public boolean isLegacyPeer() {
+    return legacy;
+  }
+
+  public int getPeerCapabilities() {
+    return peerCapabilities;
+  }
+
+  /**
+   * @return true if messages to the peer are deflated against the dictionary
+   */
+  public boolean hasSharedDictionary() {
+    return sharedDictionary;
+  }
+
+  /**
+   * @return Key of the way encode treats payloads for this peer. Engines
+   *         sharing a compressor and returning the same key produce the same
+   *         Payload, so it can be encoded once for all of them.
+   */
+  public int getEncoding() {
+    if (compressor == null || !compressor.isEnabled() || (peerCapabilities & CAPABILITY_DEFLATE) == 0) {
+      return 0;
+    }
+    return sharedDictionary ? 2 : 1;
+  }
+
+  /**
+   * Compresses a payload if compression is enabled, the peer can inflate it
+   * and it shrinks
+   *
+   * @param binary Whether the payload is raw bytes rather than UTF-8 text
+   */
+  public Payload encode(byte[] payload, boolean binary) {
+    int flags = binary ? FrameCodec.FLAG_BINARY : 0;
+    PayloadCompressor compressor = this.compressor;
+    if (compressor == null || (peerCapabilities & CAPABILITY_DEFLATE) == 0) {
+      return new Payload(payload, flags, payload.length);
+    }
+    boolean useDictionary = sharedDictionary;
+    byte[] compressed = compressor.compress(payload, useDictionary);
+    if (compressed == null) {
+      return new Payload(payload, flags, payload.length);
+    }
+    flags |= FrameCodec.FLAG_COMPRESSED | (useDictionary ? FrameCodec.FLAG_DICTIONARY : 0);
+    return new Payload(compressed, flags, payload.length);
+  }
+
+  public void send(byte[] payload, SendCallback callback) {
+    send(payload, false, PRIORITY_NORMAL, callback);
+  }
+
+  public void send(byte[] payload, boolean binary, SendCallback callback) {
+    send(payload, binary, PRIORITY_NORMAL, callback);
+  }
+
+  /**
+   * Queues a message, compressed if possible. Its frames are cut with the
+   * packet size of the transport at the time it is queued. A short message
+   * may complete before larger ones queued earlier, see CAPABILITY_MULTIPLEX.
+   *
+   * @param payload  UTF-8 encoded text or raw bytes, not copied
+   * @param binary   Whether the payload is raw bytes rather than UTF-8 text
+   * @param priority One of PRIORITY_*
+   * @throws RuntimeException if the message cannot be framed or is larger
+   *                          than MAX_MESSAGE_SIZE
+   */
+  public void send(byte[] payload, boolean binary, int priority, SendCallback callback) {
+    send(encode(payload, binary), priority, callback);
+  }
+
+  /**
+   * Queues a message already encoded for this peer, see getEncoding
+   *
+   * @param encoded  Result of encode, not copied so it can be queued for
+   *                 several peers
+   * @param priority One of PRIORITY_*
+   * @throws RuntimeException if the message cannot be framed or is larger
+   *                          than MAX_MESSAGE_SIZE
+   */
+  public void send(Payload encoded, int priority, SendCallback callback) {
+    if (priority < PRIORITY_REALTIME || priority > PRIORITY_BULK) {
+      throw new RuntimeException("Invalid priority: " + priority);
+    }
+    // The peer would drop it, even compressed since it inflates it first
+    if (encoded.length > MAX_MESSAGE_SIZE || encoded.data.length > MAX_MESSAGE_SIZE) {
+      throw new RuntimeException("Message too large: " + encoded.length + " bytes, up to " + MAX_MESSAGE_SIZE
+          + " without L2CAP");
+    }
+    if (legacy && encoded.flags != 0) {
+      throw new RuntimeException("Peer only supports text messages");
+    }
+    synchronized (this) {
+      pending.get(priority).add(new OutgoingMessage(encoded.data, encoded.flags, nextMessageId,
+          transport.getMaxPacketSize(), callback));
+      nextMessageId = (nextMessageId + 1) & FrameCodec.MAX_MESSAGE_ID;
+    }
+    pump();
+  }
+
+  public synchronized boolean isIdle() {
+    if (current != null || activeCount > 0 || frameInFlight || !unconfirmed.isEmpty()) {
+      return false;
+    }
+    for (ArrayDeque<OutgoingMessage> queue : pending) {
+      if (!queue.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Rejects every queued message and drops partially received ones,
+   * typically on disconnection
+   */
+  public void close(String error) {
+    List<OutgoingMessage> failed = new ArrayList<>();
+    synchronized (this) {
+      // Still active unless its last frame is the one in flight
+      if (current != null && !current.hasNextFrame()) {
+        failed.add(current);
+      }
+      for (Unconfirmed sent : unconfirmed) {
+        failed.add(sent.message);
+      }
+      unconfirmed.clear();
+      for (int i = 0; i < PRIORITIES; i++) {
+        failed.addAll(active.get(i));
+        failed.addAll(pending.get(i));
+        active.get(i).clear();
+        pending.get(i).clear();
+      }
+      activeCount = 0;
+      Arrays.fill(activeBytes, 0);
+      current = null;
+      frameInFlight = false;
+    }
+    reassembler.clear();
+    synchronized (legacyMessage) {
+      legacyMessage.reset();
+      legacyOverflow = false;
+    }
+    for (OutgoingMessage outgoing : failed) {
+      if (outgoing.getCallback() != null) {
+        outgoing.getCallback().onError(error);
+      }
+    }
+  }
+
+  @Override
+  public void onPacketSent() {
+    OutgoingMessage completed = null;
+    synchronized (this) {
+      frameInFlight = false;
+      if (current != null && !current.hasNextFrame()) {
+        if (currentFrame > deliveredFrames) {
+          // Sent once the peer confirms it
+          unconfirmed.add(new Unconfirmed(current, currentFrame));
+        } else {
+          completed = current;
+        }
+      }
+      current = null;
+    }
+    if (completed != null && completed.getCallback() != null) {
+      completed.getCallback().onSent();
+    }
+    pump();
+  }
+
+  @Override
+  public void onPacketsDelivered(int count) {
+    List<OutgoingMessage> delivered = new ArrayList<>();
+    synchronized (this) {
+      deliveredFrames += count;
+      while (!unconfirmed.isEmpty() && unconfirmed.peek().frame <= deliveredFrames) {
+        delivered.add(unconfirmed.poll().message);
+      }
+    }
+    for (OutgoingMessage message : delivered) {
+      if (message.getCallback() != null) {
+        message.getCallback().onSent();
+      }
+    }
+  }
+
+  @Override
+  public void onTransportFailed(String error) {
+    close(error);
+  }
+
+  @Override
+  public void onPacketFailed(String error) {
+    failCurrent(error);
+    pump();
+  }
+
+  @Override
+  public void onPacketReceived(byte[] packet) {
+    if (legacy) {
+      onLegacyPacket(packet);
+      return;
+    }
+    IncomingMessage message;
+    try {
+      message = reassembler.onFrame(peer, packet);
+    } catch (RuntimeException e) {
+      listener.onError("Dropping frame from " + peer + ": " + e.getMessage());
+      return;
+    }
+    if (message != null) {
+      listener.onMessage(message);
+    }
+  }
+
+  /**
+   * Appends a chunk from a legacy peer, the message is complete once its
+   * EOM_MARKER arrives
+   */
+  private void onLegacyPacket(byte[] packet) {
+    IncomingMessage message = null;
+    String error = null;
+    synchronized (legacyMessage) {
+      if (FrameCodec.isEomMarker(packet)) {
+        if (legacyOverflow) {
+          error = "Dropping message from " + peer + ": too large";
+        } else {
+          message = IncomingMessage.decode(legacyMessage.toByteArray(), legacyMessage.size(), 0, 0, null);
+        }
+        legacyMessage.reset();
+        legacyOverflow = false;
+      } else if (legacyOverflow
+          || legacyMessage.size() + packet.length > MessageReassembler.DEFAULT_MAX_BYTES_IN_FLIGHT) {
+        legacyMessage.reset();
+        legacyOverflow = true;
+      } else {
+        legacyMessage.write(packet, 0, packet.length);
+      }
+    }
+    if (error != null) {
+      listener.onError(error);
+    } else if (message != null) {
+      listener.onMessage(message);
+    }
+  }
+
+  /**
+   * Sends the next frame unless one is still waiting for onPacketSent
+   */
+  private void pump() {
+    while (true) {
+      byte[] frame = null;
+      synchronized (this) {
+        if (frameInFlight || awaitingCapabilities) {
+          return;
+        }
+        activate();
+        int priority = nextPriority(active.get(PRIORITY_REALTIME).size(), active.get(PRIORITY_NORMAL).size(),
+            active.get(PRIORITY_BULK).size());
+        if (priority >= 0) {
+          List<OutgoingMessage> messages = active.get(priority);
+          int index = nextActive[priority] < messages.size() ? nextActive[priority] : 0;
+          current = messages.get(index);
+          frame = current.nextFrame();
+          frameInFlight = true;
+          currentFrame = transport.confirmsDelivery() ? ++confirmableFrames : 0;
+          if (current.hasNextFrame()) {
+            nextActive[priority] = index + 1;
+          } else {
+            // The peer completes it with this frame
+            messages.remove(index);
+            nextActive[priority] = index;
+            activeCount--;
+            activeBytes[priority] -= current.getLength();
+          }
+        }
+      }
+      if (frame == null) {
+        listener.onIdle();
+        return;
+      }
+      if (transport.send(frame)) {
+        return;
+      }
+      failCurrent("Unable to send frame");
+    }
+  }
+
+  /**
+   * Moves queued messages to the active ones while the peer can reassemble
+   * them side by side. Guarded by this.
+   */
+  private void activate() {
+    if ((peerCapabilities & CAPABILITY_MULTIPLEX) == 0) {
+      // One message at a time, the priorities pick which one is next
+      if (activeCount == 0) {
+        int priority = nextPriority(pending.get(PRIORITY_REALTIME).size(), pending.get(PRIORITY_NORMAL).size(),
+            pending.get(PRIORITY_BULK).size());
+        if (priority >= 0) {
+          admit(priority);
+        }
+      }
+      return;
+    }
+    for (int priority = PRIORITY_REALTIME; priority <= PRIORITY_BULK; priority++) {
+      ArrayDeque<OutgoingMessage> queue = pending.get(priority);
+      while (!queue.isEmpty() && (activeCount == 0 || (active.get(priority).size() < MAX_ACTIVE[priority]
+          && hasRoom(priority, queue.peek().getLength())))) {
+        admit(priority);
+      }
+    }
+  }
+
+  /**
+   * @return Whether the peer's reassembler has room for another message of
+   *         the class next to the active ones. Guarded by this.
+   */
+  private boolean hasRoom(int priority, long length) {
+    long others = activeBytes[PRIORITY_NORMAL] + activeBytes[PRIORITY_BULK];
+    if (activeBytes[PRIORITY_REALTIME] + others + length > MessageReassembler.DEFAULT_MAX_BYTES_IN_FLIGHT) {
+      return false;
+    }
+    return priority == PRIORITY_REALTIME || others + length <= MAX_MESSAGE_SIZE;
+  }
+
+  /**
+   * Moves the oldest queued message of a class to the active ones. Guarded
+   * by this.
+   */
+  private void admit(int priority) {
+    OutgoingMessage message = pending.get(priority).poll();
+    if (legacy) {
+      message.useEomMarker();
+    }
+    active.get(priority).add(message);
+    activeCount++;
+    activeBytes[priority] += message.getLength();
+  }
+
+  /**
+   * Picks the class to serve next: realtime whenever it has messages, then
+   * normal and bulk in a NORMAL_WEIGHT to one ratio. Guarded by this.
+   *
+   * @return One of PRIORITY_*, -1 if every count is zero
+   */
+  private int nextPriority(int realtime, int normal, int bulk) {
+    if (realtime > 0) {
+      return PRIORITY_REALTIME;
+    }
+    if (normal > 0 && (bulk == 0 || normalTurns < NORMAL_WEIGHT)) {
+      if (bulk > 0) {
+        normalTurns++;
+      }
+      return PRIORITY_NORMAL;
+    }
+    normalTurns = 0;
+    return bulk > 0 ? PRIORITY_BULK : -1;
+  }
+
+  /**
+   * Drops the rest of the message whose frame failed and rejects its callback
+   */
+  private void failCurrent(String error) {
+    OutgoingMessage failed;
+    synchronized (this) {
+      failed = current;
+      current = null;
+      frameInFlight = false;
+      for (int i = 0; i < PRIORITIES; i++) {
+        if (failed != null && active.get(i).remove(failed)) {
+          activeCount--;
+          activeBytes[i] -= failed.getLength();
+        }
+      }
+    }
+    if (failed != null && failed.getCallback() != null) {
+      failed.getCallback().onError(error);
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package com.albermonte.plugins.blemessaging;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rebuilds messages from incoming frames. Each (peer, message id) pair gets
+ * its own buffer, sized from the total length in the first frame, so several
+ * peers or interleaved messages never mix. Payloads are inflated and text
+ * decoded from UTF-8 once, when the last frame arrives.
+ */
+public class MessageReassembler {
+  public static final int DEFAULT_MAX_BYTES_IN_FLIGHT = 1024 * 1024;
+  public static final int DEFAULT_MAX_MESSAGES_IN_FLIGHT = 8;
+
+  private final BufferPool bufferPool = new BufferPool();
+  private final Map<String, PeerState> peers = new HashMap<>();
+  private final int maxBytesInFlight;
+  private final int maxMessagesInFlight;
+  // Inflates FLAG_DICTIONARY payloads
+  private volatile byte[] dictionary = null;
+
+  private static class PendingMessage {
+    byte[] buffer;
+    int length = 0;
+    final int expectedLength;
+    // FrameCodec.MESSAGE_FLAGS bits of the first frame
+    final int flags;
+    int nextSequence = 0;
+
+    PendingMessage(byte[] buffer, int expectedLength, int flags) {
+      this.buffer = buffer;
+      this.expectedLength = expectedLength;
+      this.flags = flags;
+    }
+  }
+
+  private static class PeerState {
+    final Map<Integer, PendingMessage> messages = new HashMap<>();
+    int bytesInFlight = 0;
+  }
+
+  public MessageReassembler() {
+    this(DEFAULT_MAX_BYTES_IN_FLIGHT, DEFAULT_MAX_MESSAGES_IN_FLIGHT);
+  }
+
+  /**
+   * @param maxBytesInFlight    Largest total size of the partial messages kept
+   *                            for a single peer
+   * @param maxMessagesInFlight Largest number of partial messages kept for a
+   *                            single peer
+   */
+  public MessageReassembler(int maxBytesInFlight, int maxMessagesInFlight) {
+    this.maxBytesInFlight = maxBytesInFlight;
+    this.maxMessagesInFlight = maxMessagesInFlight;
+  }
+
+  /**
+   * @param dictionary Dictionary shared with the peers, null if none
+   */
+  public void setDictionary(byte[] dictionary) {
+    this.dictionary = dictionary;
+  }
+
+  /**
+   * Adds a frame received from a peer
+   *
+   * @param peer  Address of the sending device
+   * @param frame Frame as received, header included
+   * @return The complete message if this was its last frame, null otherwise
+   * @throws RuntimeException if the frame is malformed, out of order or would
+   *                          exceed the peer's limits. The message it belongs
+   *                          to is dropped.
+   */
+  public synchronized IncomingMessage onFrame(String peer, byte[] frame) {
+    if (!FrameCodec.isValid(frame)) {
+      throw new RuntimeException("Malformed frame");
+    }
+
+    PeerState state = peers.get(peer);
+    if (state == null) {
+      state = new PeerState();
+      peers.put(peer, state);
+    }
+
+    int messageId = FrameCodec.getMessageId(frame);
+    PendingMessage message;
+    if (FrameCodec.isFirst(frame)) {
+      // A new first frame replaces any stale message with the same id
+      discard(state, messageId);
+      message = start(state, messageId, FrameCodec.getTotalLength(frame),
+          FrameCodec.getFlags(frame) & FrameCodec.MESSAGE_FLAGS);
+    } else {
+      message = state.messages.get(messageId);
+      if (message == null) {
+        throw new RuntimeException("Frame for unknown message " + messageId);
+      }
+    }
+
+    if (FrameCodec.getSequence(frame) != message.nextSequence) {
+      discard(state, messageId);
+      throw new RuntimeException("Out of order frame for message " + messageId);
+    }
+    message.nextSequence++;
+
+    int payloadLength = FrameCodec.getPayloadLength(frame);
+    if (message.length + payloadLength > message.expectedLength) {
+      discard(state, messageId);
+      throw new RuntimeException("Message " + messageId + " longer than announced");
+    }
+    System.arraycopy(frame, FrameCodec.getPayloadOffset(frame), message.buffer, message.length, payloadLength);
+    message.length += payloadLength;
+
+    if (!FrameCodec.isLast(frame)) {
+      return null;
+    }
+
+    try {
+      return IncomingMessage.decode(message.buffer, message.length, message.flags, maxBytesInFlight, dictionary);
+    } finally {
+      discard(state, messageId);
+    }
+  }
+
+  /**
+   * Drops every partial message from a peer, typically on disconnection
+   */
+  public synchronized void removePeer(String peer) {
+    PeerState state = peers.remove(peer);
+    if (state == null) {
+      return;
+    }
+    for (PendingMessage message : state.messages.values()) {
+      bufferPool.release(message.buffer);
+    }
+  }
+
+  public synchronized void clear() {
+    for (String peer : peers.keySet().toArray(new String[0])) {
+      removePeer(peer);
+    }
+  }
+
+  private PendingMessage start(PeerState state, int messageId, int expectedLength, int flags) {
+    if (expectedLength < 0 || expectedLength > maxBytesInFlight) {
+      throw new RuntimeException("Message " + messageId + " too large: " + expectedLength);
+    }
+    if (state.messages.size() >= maxMessagesInFlight) {
+      throw new RuntimeException("Too many messages in flight");
+    }
+    if (state.bytesInFlight + expectedLength > maxBytesInFlight) {
+      throw new RuntimeException("Too many bytes in flight");
+    }
+    PendingMessage message = new PendingMessage(bufferPool.acquire(expectedLength), expectedLength, flags);
+    state.messages.put(messageId, message);
+    state.bytesInFlight += expectedLength;
+    return message;
+  }
+
+  private void discard(PeerState state, int messageId) {
+    PendingMessage message = state.messages.remove(messageId);
+    if (message != null) {
+      state.bytesInFlight -= message.expectedLength;
+      bufferPool.release(message.buffer);
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package com.albermonte.plugins.blemessaging;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shares the GATT server between the connected centrals. Each central's
+ * transport hands over one frame at a time, and waiting frames are notified
+ * round-robin, one central after the other, with at most MAX_IN_FLIGHT
+ * notifications outstanding across the server. Every onNotificationSent
+ * frees a slot for the next central in line, so no central holds the server
+ * while its messages drain, and a notification the stack refuses as busy is
+ * retried rather than failing the message.
+ */
+class NotificationScheduler {
+  private static final String TAG = "BLEMessaging/Peripheral";
+  // Notifications outstanding across all centrals
+  static final int MAX_IN_FLIGHT = 4;
+  // Attempts of a notification refused as busy before it fails
+  private static final int MAX_BUSY_RETRIES = 50;
+  // Wait before retrying when no outstanding notification will wake us up
+  private static final long BUSY_RETRY_DELAY = 10;
+
+  // Result of GattServerTransport.notifyFrame
+  static final int NOTIFY_SENT = 0;
+  static final int NOTIFY_BUSY = 1;
+  static final int NOTIFY_FAILED = 2;
+
+  private static class Pending {
+    final byte[] frame;
+    int busyRetries = 0;
+
+    Pending(byte[] frame) {
+      this.frame = frame;
+    }
+  }
+
+  private final Scheduler scheduler;
+  // Guarded by this. Centrals with a frame waiting, in the order they are
+  // served; a central goes back to the end once its frame is notified
+  private final ArrayDeque<GattServerTransport> ready = new ArrayDeque<>();
+  private final Map<GattServerTransport, Pending> pending = new HashMap<>();
+  private final Set<GattServerTransport> inFlight = new HashSet<>();
+  // Whether the stack refused the last notification, until a slot frees
+  private boolean busy = false;
+
+  NotificationScheduler(Scheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Queues the next frame of a central, reported through its
+   * onNotificationSent or onNotificationFailed
+   */
+  void submit(GattServerTransport transport, byte[] frame) {
+    synchronized (this) {
+      if (pending.put(transport, new Pending(frame)) == null) {
+        ready.add(transport);
+      }
+    }
+    dispatch();
+  }
+
+  /**
+   * Frees the slot of a central whose notification the stack reported
+   */
+  void onNotificationSent(GattServerTransport transport) {
+    synchronized (this) {
+      inFlight.remove(transport);
+      busy = false;
+    }
+    dispatch();
+  }
+
+  /**
+   * Drops the frame of a disconnected central and frees its slot
+   */
+  void remove(GattServerTransport transport) {
+    synchronized (this) {
+      ready.remove(transport);
+      pending.remove(transport);
+      inFlight.remove(transport);
+    }
+    dispatch();
+  }
+
+  private void dispatch() {
+    while (true) {
+      GattServerTransport transport;
+      Pending next;
+      synchronized (this) {
+        if (busy || inFlight.size() >= MAX_IN_FLIGHT || ready.isEmpty()) {
+          return;
+        }
+        transport = ready.poll();
+        next = pending.remove(transport);
+        inFlight.add(transport);
+      }
+
+      int result;
+      String error = "Failed to send notification";
+      try {
+        result = transport.notifyFrame(next.frame);
+      } catch (RuntimeException e) {
+        result = NOTIFY_FAILED;
+        error = e.getMessage();
+      }
+      if (result == NOTIFY_SENT) {
+        continue;
+      }
+
+      synchronized (this) {
+        inFlight.remove(transport);
+        if (result == NOTIFY_BUSY && ++next.busyRetries <= MAX_BUSY_RETRIES) {
+          // Keeps its turn and waits for a slot to free up
+          pending.put(transport, next);
+          ready.addFirst(transport);
+          busy = true;
+          if (inFlight.isEmpty()) {
+            scheduler.schedule(this::retry, BUSY_RETRY_DELAY);
+          }
+          return;
+        }
+      }
+      Log.e(TAG, error);
+      transport.onNotificationFailed(error);
+    }
+  }
+
+  private void retry() {
+    synchronized (this) {
+      busy = false;
+    }
+    dispatch();
+  }
+}
@@ -0,0 +1,153 @@
+package com.albermonte.plugins.blemessaging;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message being sent, encoded to UTF-8 once and cut into frames on demand.
+ * Frames are split on byte boundaries that fit the negotiated payload size and
+ * never in the middle of a UTF-8 code point. Binary and compressed messages
+ * are split anywhere.
+ *
+ * For peers that predate the frame header, text is cut into bare chunks the
+ * same way and followed by FrameCodec.EOM_MARKER, see useEomMarker.
+ */
+public class OutgoingMessage {
+  // Longest run of continuation bytes a frame boundary may need to back off
+  private static final int MAX_UTF8_BACKOFF = 3;
+
+  private final byte[] payload;
+  // FrameCodec.MESSAGE_FLAGS bits, set on the first frame
+  private final int messageFlags;
+  private final int messageId;
+  private final int maxFrameSize;
+  private final SendCallback callback;
+  private int offset = 0;
+  private int sequence = 0;
+  // Whether frames are bare chunks followed by an EOM_MARKER packet
+  private boolean eom = false;
+
+  /**
+   * @param message      The text to send
+   * @param messageId    Id written in every frame header
+   * @param maxFrameSize Bytes available per packet, see
+   *                     Utils.getMaxPayloadSize
+   * @param callback     Notified once the message is sent, may be null
+   */
+  public OutgoingMessage(String message, int messageId, int maxFrameSize, SendCallback callback) {
+    this(message.getBytes(StandardCharsets.UTF_8), 0, messageId, maxFrameSize, callback);
+  }
+
+  /**
+   * @param payload      The UTF-8 encoded text, raw bytes or deflated payload
+   *                     to send, not copied
+   * @param messageFlags FrameCodec.MESSAGE_FLAGS bits describing the
+   *                     payload
+   */
+  public OutgoingMessage(byte[] payload, int messageFlags, int messageId, int maxFrameSize, SendCallback callback) {
+    this.payload = payload;
+    this.messageFlags = messageFlags & FrameCodec.MESSAGE_FLAGS;
+    this.messageId = messageId;
+    this.maxFrameSize = maxFrameSize;
+    this.callback = callback;
+
+    int minChunk = maxFrameSize - FrameCodec.FIRST_HEADER_SIZE - MAX_UTF8_BACKOFF;
+    if (minChunk <= 0) {
+      throw new RuntimeException("Payload size too small: " + maxFrameSize);
+    }
+    if ((long) payload.length > (long) FrameCodec.MAX_SEQUENCE * minChunk) {
+      throw new RuntimeException("Message too long");
+    }
+  }
+
+  /**
+   * Sends the text as bare chunks followed by an EOM_MARKER packet, for peers
+   * that predate the frame header. Only valid before the first frame.
+   *
+   * @throws RuntimeException if the message is not plain text
+   */
+  public void useEomMarker() {
+    if (messageFlags != 0) {
+      throw new RuntimeException("Peer only supports text messages");
+    }
+    eom = true;
+  }
+
+  public boolean hasNextFrame() {
+    if (eom) {
+      // The marker goes last, after the payload
+      return offset <= payload.length;
+    }
+    return sequence == 0 || offset < payload.length;
+  }
+
+  /**
+   * @return The next frame to send, the last one is flagged FLAG_LAST or is
+   *         the EOM_MARKER
+   */
+  public byte[] nextFrame() {
+    if (eom) {
+      if (offset == payload.length) {
+        offset++;
+        return FrameCodec.encodeEomMarker();
+      }
+      int end = getChunkEnd(maxFrameSize);
+      byte[] chunk = new byte[end - offset];
+      System.arraycopy(payload, offset, chunk, 0, chunk.length);
+      offset = end;
+      return chunk;
+    }
+
+    int flags = sequence == 0 ? FrameCodec.FLAG_FIRST | messageFlags : 0;
+    int end = getChunkEnd(maxFrameSize - FrameCodec.getHeaderSize(flags));
+    if (end == payload.length) {
+      flags |= FrameCodec.FLAG_LAST;
+    }
+
+    byte[] frame = FrameCodec.encode(flags, messageId, sequence, payload.length, payload, offset, end - offset);
+    offset = end;
+    sequence++;
+    return frame;
+  }
+
+  /**
+   * @param room Bytes of payload the next frame can carry
+   * @return End of the payload sent in the next frame
+   */
+  private int getChunkEnd(int room) {
+    int end = offset + room;
+    if (end >= payload.length) {
+      return payload.length;
+    }
+    if (messageFlags == 0) {
+      // Back off to the start of the code point that would be split
+      int boundary = end;
+      while (boundary > offset && (payload[boundary] & 0xC0) == 0x80) {
+        boundary--;
+      }
+      if (boundary > offset) {
+        end = boundary;
+      }
+    }
+    return end;
+  }
+
+  public int getMessageId() {
+    return messageId;
+  }
+
+  public boolean isBinary() {
+    return (messageFlags & FrameCodec.FLAG_BINARY) != 0;
+  }
+
+  public boolean isCompressed() {
+    return (messageFlags & FrameCodec.FLAG_COMPRESSED) != 0;
+  }
+
+  public int getLength() {
+    return payload.length;
+  }
+
+  public SendCallback getCallback() {
+    return callback;
+  }
+}
@@ -0,0 +1,161 @@
+package com.albermonte.plugins.blemessaging;
+
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate (no zlib header or checksum) applied to whole message payloads
+ * before they are framed. Small messages and payloads that do not shrink are
+ * sent as is.
+ *
+ * A preset dictionary, typically sample messages, primes the compressor so
+ * that even short messages shrink. It only helps if the peer inflates with
+ * the same bytes, so it is identified by its Adler-32 like zlib does.
+ */
+public class PayloadCompressor {
+  public static final int DEFAULT_LEVEL = 6; // Deflate's own default
+  public static final int DEFAULT_THRESHOLD = 128;
+  // Deflate only looks back this far, earlier dictionary bytes are useless
+  public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+  private final int level;
+  private final int threshold;
+  private final byte[] dictionary;
+  private final long dictionaryId;
+
+  /**
+   * @param level     Deflate level from 1 (fastest) to 9 (smallest), 0
+   *                  disables compression
+   * @param threshold Payloads shorter than this many bytes are not compressed
+   */
+  public PayloadCompressor(int level, int threshold) {
+    this(level, threshold, null);
+  }
+
+  /**
+   * @param dictionary Preset dictionary shared with peers, only its last
+   *                   MAX_DICTIONARY_SIZE bytes are kept. Null or empty for
+   *                   none.
+   */
+  public PayloadCompressor(int level, int threshold, byte[] dictionary) {
+    if (level < 0 || level > 9) {
+      throw new RuntimeException("Invalid compression level: " + level);
+    }
+    this.level = level;
+    this.threshold = Math.max(threshold, 0);
+    if (dictionary != null && dictionary.length > 0) {
+      this.dictionary = Arrays.copyOfRange(dictionary, Math.max(0, dictionary.length - MAX_DICTIONARY_SIZE),
+          dictionary.length);
+      this.dictionaryId = getDictionaryId(this.dictionary);
+    } else {
+      this.dictionary = null;
+      this.dictionaryId = 0;
+    }
+  }
+
+  public boolean isEnabled() {
+    return level > 0;
+  }
+
+  public boolean hasDictionary() {
+    return dictionary != null;
+  }
+
+  /**
+   * @return The dictionary, null if there is none. Not copied.
+   */
+  public byte[] getDictionary() {
+    return dictionary;
+  }
+
+  /**
+   * @return Adler-32 of the dictionary, 0 if there is none
+   */
+  public long getDictionaryId() {
+    return dictionaryId;
+  }
+
+  public static long getDictionaryId(byte[] dictionary) {
+    Adler32 adler = new Adler32();
+    adler.update(dictionary, 0, dictionary.length);
+    return adler.getValue();
+  }
+
+  /**
+   * @param useDictionary Whether to deflate against the dictionary, which
+   *                      the peer must have. Every message is then worth
+   *                      trying regardless of the threshold.
+   * @return The deflated payload, or null if it should be sent uncompressed
+   */
+  public byte[] compress(byte[] payload, boolean useDictionary) {
+    useDictionary = useDictionary && dictionary != null;
+    if (!isEnabled() || payload.length == 0 || (payload.length < threshold && !useDictionary)) {
+      return null;
+    }
+    Deflater deflater = new Deflater(level, true);
+    try {
+      if (useDictionary) {
+        deflater.setDictionary(dictionary);
+      }
+      deflater.setInput(payload);
+      deflater.finish();
+      // Anything that does not fit in fewer bytes than the input is not worth it
+      byte[] output = new byte[payload.length - 1];
+      int length = 0;
+      while (!deflater.finished() && length < output.length) {
+        length += deflater.deflate(output, length, output.length - length);
+      }
+      return deflater.finished() ? Arrays.copyOf(output, length) : null;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * @param maxLength  Largest inflated size accepted
+   * @param dictionary Dictionary the data was deflated against, null if none
+   * @return The inflated payload
+   * @throws RuntimeException if the data is not valid deflate or inflates to
+   *                          more than maxLength bytes
+   */
+  public static byte[] inflate(byte[] data, int offset, int length, int maxLength, byte[] dictionary) {
+    Inflater inflater = new Inflater(true);
+    try {
+      if (dictionary != null) {
+        inflater.setDictionary(dictionary);
+      }
+      inflater.setInput(data, offset, length);
+      byte[] output = new byte[Math.min(maxLength, Math.max(length * 4, 256))];
+      int size = 0;
+      boolean padded = false;
+      while (!inflater.finished()) {
+        if (size == output.length) {
+          if (output.length >= maxLength) {
+            throw new RuntimeException("Compressed payload exceeds " + maxLength + " bytes");
+          }
+          output = Arrays.copyOf(output, (int) Math.min(maxLength, output.length * 2L));
+        }
+        int inflated = inflater.inflate(output, size, output.length - size);
+        size += inflated;
+        if (inflated == 0 && inflater.needsInput()) {
+          // Raw inflate may need one extra byte past the end of the stream
+          if (padded) {
+            throw new RuntimeException("Truncated compressed payload");
+          }
+          inflater.setInput(new byte[1]);
+          padded = true;
+        } else if (inflated == 0 && inflater.needsDictionary()) {
+          throw new RuntimeException("Compressed payload needs a dictionary");
+        }
+      }
+      return Arrays.copyOf(output, size);
+    } catch (DataFormatException e) {
+      throw new RuntimeException("Malformed compressed payload: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+}
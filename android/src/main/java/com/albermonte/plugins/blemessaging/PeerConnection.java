@@ -0,0 +1,64 @@
+package com.albermonte.plugins.blemessaging;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.content.Context;
+
+import java.util.UUID;
+
+/**
+ * State kept by the central for each connected peripheral: its GATT client,
+ * the transport and message engine built on it, and the link profile. GATT
+ * callbacks, sends and timers of the connection all run on its own thread,
+ * so a slow link or a large message never holds up the others.
+ */
+class PeerConnection {
+  final BluetoothDevice device;
+  final String uuid;
+  // Set once connectGatt returns, or by its first callback if that comes
+  // first, see attach
+  volatile BluetoothGatt gatt = null;
+  // Runs the connection's work in order, quit on disconnection
+  final HandlerScheduler thread;
+  final GattOperationQueue operations;
+  final GattClientTransport transport;
+  // Numbers and retransmits frames once the peripheral supports it
+  final ReliableTransport reliableTransport;
+  final MessageEngine engine;
+
+  // Link profile requested by the app, restored after a bulk transfer.
+  // Guarded by this
+  int linkPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+  int linkPhy = BluetoothDevice.PHY_LE_1M_MASK;
+  boolean autoBulkTransfer = true;
+  boolean bulkTransfer = false;
+
+  // Open once the PSM has been read, null if the peripheral has no channel
+  volatile L2capChannel l2capChannel = null;
+
+  volatile boolean mtuNegotiated = false;
+
+  PeerConnection(Context context, BluetoothDevice device, String uuid, UUID serviceUUID,
+      boolean writeWithoutResponse, MessageEngine.Listener listener) {
+    this.device = device;
+    this.uuid = uuid;
+    this.thread = HandlerScheduler.start("BLEMessaging-" + uuid);
+    this.operations = new GattOperationQueue(thread);
+    this.transport = new GattClientTransport(context, serviceUUID, operations, thread, writeWithoutResponse);
+    this.reliableTransport = new ReliableTransport(transport, thread);
+    this.engine = new MessageEngine(uuid, reliableTransport, listener);
+  }
+
+  /**
+   * Binds the client of this connection, on the first call
+   *
+   * @return Whether gatt is the client of this connection
+   */
+  synchronized boolean attach(BluetoothGatt gatt) {
+    if (this.gatt == null) {
+      this.gatt = gatt;
+      transport.setGatt(gatt);
+    }
+    return this.gatt == gatt;
+  }
+}
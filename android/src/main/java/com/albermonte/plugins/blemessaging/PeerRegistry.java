@@ -0,0 +1,74 @@
+package com.albermonte.plugins.blemessaging;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Set of devices indexed both by MAC address and by the device UUID exposed
+ * to JS, safe to use from GATT callbacks and plugin calls at once. Lookups
+ * either way are lock-free map reads; the UUID is derived once per address,
+ * see Utils.getDeviceUUID.
+ */
+class PeerRegistry {
+  private final Map<String, BluetoothDevice> byAddress = new ConcurrentHashMap<>();
+  private final Map<String, BluetoothDevice> byUUID = new ConcurrentHashMap<>();
+
+  /**
+   * @return false if the device was already registered
+   */
+  boolean add(BluetoothDevice device) {
+    if (byAddress.putIfAbsent(device.getAddress(), device) != null) {
+      return false;
+    }
+    byUUID.put(Utils.getDeviceUUID(device.getAddress()), device);
+    return true;
+  }
+
+  void remove(BluetoothDevice device) {
+    if (byAddress.remove(device.getAddress()) != null) {
+      byUUID.remove(Utils.getDeviceUUID(device.getAddress()));
+    }
+  }
+
+  /**
+   * @return The device with this UUID, null if not registered
+   */
+  BluetoothDevice get(String uuid) {
+    return uuid != null ? byUUID.get(uuid) : null;
+  }
+
+  /**
+   * @return The device with this MAC address, null if not registered
+   */
+  BluetoothDevice getByAddress(String address) {
+    return byAddress.get(address);
+  }
+
+  boolean contains(String uuid) {
+    return get(uuid) != null;
+  }
+
+  boolean isEmpty() {
+    return byAddress.isEmpty();
+  }
+
+  int size() {
+    return byAddress.size();
+  }
+
+  /**
+   * @return Live view of the registered devices, weakly consistent while
+   *         they change
+   */
+  Collection<BluetoothDevice> devices() {
+    return byAddress.values();
+  }
+
+  void clear() {
+    byAddress.clear();
+    byUUID.clear();
+  }
+}
@@ -11,6 +11,8 @@ import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
@@ -18,6 +20,8 @@ import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelUuid;
 import android.util.Log;
 
@@ -25,10 +29,16 @@ import androidx.core.app.ActivityCompat;
 
 import com.getcapacitor.JSObject;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PeripheralController {
   private static final String TAG = "BLEMessaging/Peripheral";
@@ -41,17 +51,56 @@ public class PeripheralController {
   private BluetoothGattServer bluetoothGattServer;
   private BluetoothGatt bluetoothGattClient;
   private BluetoothLeAdvertiser advertiser;
-  private List<BluetoothDevice> connectedDevices = new ArrayList<>();
+  private final PeerRegistry connectedDevices = new PeerRegistry();
   private Boolean isAdvertising = false;
+  // Centrals whose onDeviceConnected event has already been emitted
+  private final Map<String, Boolean> announcedDevices = new ConcurrentHashMap<>();
+  // Message engine of each connected central, keyed by MAC address
+  private final Map<String, DeviceQueue> sendQueues = new ConcurrentHashMap<>();
+
+  // Publish an L2CAP channel for large messages
+  private volatile boolean useL2cap = true;
+  private BluetoothServerSocket l2capServerSocket;
+  // Channels opened by the connected centrals, keyed by MAC address
+  private final Map<String, L2capChannel> l2capChannels = new ConcurrentHashMap<>();
+  // Deflates outgoing messages for centrals that advertise support
+  private volatile PayloadCompressor compressor = null;
+  // Takes turns between the centrals for each notification, retrying busy
+  // ones from the main thread
+  private final NotificationScheduler notifications = new NotificationScheduler(
+      new HandlerScheduler(new Handler(Looper.getMainLooper())));
 
-  // Constants for chunked messaging
-  private static final int MAX_CHUNK_SIZE = 20; // BLE packet size limit, adjust as needed
-  private static final String EOM_MARKER = "EOM"; // End of message marker
-
-  // Variables to track message sending state
-  private String pendingMessage = null;
-  private int messageIndex = 0;
-  private String currentDeviceUuid = null;
+  /**
+   * State kept for each connected central. GATT callbacks, sends and timers
+   * of the central all run on its own thread, so a slow link or a large
+   * message never holds up the others.
+   */
+  private static class DeviceQueue {
+    final BluetoothDevice device;
+    // Runs the central's work in order, quit on disconnection
+    final HandlerScheduler thread;
+    final GattServerTransport transport;
+    // Numbers and retransmits frames once the central supports it
+    final ReliableTransport reliableTransport;
+    final MessageEngine engine;
+    // Written by the central before it subscribes, null until then and for
+    // centrals that predate framing. Only used on the central's thread.
+    byte[] capabilities = null;
+    // PHY requested by the app, restored after a bulk transfer. Guarded by
+    // this
+    int linkPhy = BluetoothDevice.PHY_LE_1M_MASK;
+    boolean autoBulkTransfer = true;
+    boolean bulkTransfer = false;
+
+    DeviceQueue(BluetoothDevice device, HandlerScheduler thread, GattServerTransport transport,
+        MessageEngine.Listener listener) {
+      this.device = device;
+      this.thread = thread;
+      this.transport = transport;
+      this.reliableTransport = new ReliableTransport(transport, thread);
+      this.engine = new MessageEngine(Utils.getDeviceUUID(device.getAddress()), reliableTransport, listener);
+    }
+  }
 
   public PeripheralController(Context context, BluetoothManager bluetoothManager, BluetoothAdapter bluetoothAdapter,
       UUID uuid, BLEMessagingCallback callback) {
@@ -64,6 +113,21 @@ public class PeripheralController {
     Log.d(PeripheralController.TAG, "Initialized PeripheralController");
   }
 
+  public void setUseL2cap(boolean useL2cap) {
+    this.useL2cap = useL2cap;
+  }
+
+  /**
+   * @param level      Deflate level from 1 to 9, 0 disables compression
+   * @param threshold  Messages shorter than this many bytes are sent as is,
+   *                   unless they are deflated against the dictionary
+   * @param dictionary Preset dictionary, used with peers that advertise the
+   *                   same one. Null for none.
+   */
+  public void setCompression(int level, int threshold, byte[] dictionary) {
+    this.compressor = level > 0 ? new PayloadCompressor(level, threshold, dictionary) : null;
+  }
+
   public boolean startAdvertising() {
     Log.d(TAG, "Starting advertising");
 
@@ -126,7 +190,42 @@ public class PeripheralController {
     return true;
   }
 
-  public boolean sendMessage(String uuid, String message) {
+  /**
+   * Queues a message for a connected central. Frames are notified one at a
+   * time, each one after the stack reports the previous one through
+   * onNotificationSent, interleaved with the other messages queued for the
+   * central if it supports it, and sent again until acknowledged if the central
+   * supports it. Large messages go through the L2CAP channel instead
+   * when the central opened one, and may then overtake smaller messages still
+   * queued for notification.
+   *
+   * @param priority One of MessageEngine.PRIORITY_*, realtime messages are
+   *                 sent ahead of the others and never over L2CAP
+   * @return false if the message could not be queued, otherwise the outcome
+   *         is reported through sendCallback
+   */
+  public boolean sendMessage(String uuid, String message, int priority, SendCallback sendCallback) {
+    if (message == null || message.isEmpty()) {
+      Log.e(TAG, "Invalid message");
+      throw new RuntimeException("Invalid message");
+    }
+    // Encoded once, frames are cut when they are about to be notified
+    return send(uuid, message.getBytes(StandardCharsets.UTF_8), false, priority, sendCallback);
+  }
+
+  /**
+   * Queues raw bytes for a connected central, sent like sendMessage but
+   * without any text encoding
+   */
+  public boolean sendData(String uuid, byte[] data, int priority, SendCallback sendCallback) {
+    if (data == null || data.length == 0) {
+      Log.e(TAG, "Invalid data");
+      throw new RuntimeException("Invalid data");
+    }
+    return send(uuid, data, true, priority, sendCallback);
+  }
+
+  private boolean send(String uuid, byte[] payload, boolean binary, int priority, SendCallback sendCallback) {
     if (bluetoothGattServer == null) {
       Log.e(TAG, "GATT server not initialized");
       return false;
@@ -143,87 +242,233 @@ public class PeripheralController {
       throw new RuntimeException("Invalid UUID");
     }
     
+    BluetoothDevice targetDevice = connectedDevices.get(uuid);
+    if (targetDevice == null) {
+      Log.e(TAG, "Device not connected");
+      throw new RuntimeException("Device not connected");
+    }
+
+    BluetoothGattCharacteristic messageChar = service.getCharacteristic(Utils.MESSAGE_CHAR_UUID);
+    if (messageChar == null) {
+      Log.e(TAG, "Characteristic not found");
+      return false;
+    }
+
+    DeviceQueue queue = sendQueues.get(targetDevice.getAddress());
+    if (queue == null) {
+      Log.e(TAG, "No send queue for " + uuid);
+      return false;
+    }
+
+    // Encoded and queued on the central's thread, off the plugin thread
+    return queue.thread.post(
+        () -> deliver(queue, queue.engine.encode(payload, binary), payload.length, priority, sendCallback));
+  }
+
+  /**
+   * Queues a message for every central that has subscribed, with the same
+   * priorities as sendMessage. The text is encoded once, and compressed once
+   * for each way the centrals negotiated. Each central's engine then notifies
+   * the frames as fast as its own link allows, so the broadcast takes about
+   * as long as the slowest link rather than the sum of them.
+   *
+   * @return false if the message could not be queued, otherwise the outcome
+   *         for each central is reported through broadcastCallback
+   */
+  public boolean broadcastMessage(String message, int priority, BroadcastCallback broadcastCallback) {
     if (message == null || message.isEmpty()) {
       Log.e(TAG, "Invalid message");
       throw new RuntimeException("Invalid message");
     }
-    
-    BluetoothDevice targetDevice = null;
-    for (BluetoothDevice device : connectedDevices) {
-      if (Utils.getDeviceUUID(device.getAddress()).equals(uuid)) {
-        targetDevice = device;
-        break;
+    if (bluetoothGattServer == null) {
+      Log.e(TAG, "GATT server not initialized");
+      return false;
+    }
+
+    List<DeviceQueue> queues = new ArrayList<>();
+    for (String address : announcedDevices.keySet()) {
+      DeviceQueue queue = sendQueues.get(address);
+      if (queue != null) {
+        queues.add(queue);
       }
     }
+    Map<String, String> results = new LinkedHashMap<>();
+    if (queues.isEmpty()) {
+      broadcastCallback.onComplete(results);
+      return true;
+    }
+
+    byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+    Map<Integer, MessageEngine.Payload> encodings = new HashMap<>();
+    AtomicInteger remaining = new AtomicInteger(queues.size());
+    Log.d(TAG, "Broadcasting " + payload.length + " bytes to " + queues.size() + " centrals");
+    for (DeviceQueue queue : queues) {
+      String uuid = Utils.getDeviceUUID(queue.device.getAddress());
+      MessageEngine.Payload encoded = encodings.get(queue.engine.getEncoding());
+      if (encoded == null) {
+        encoded = queue.engine.encode(payload, false);
+        encodings.put(queue.engine.getEncoding(), encoded);
+      }
+      SendCallback sendCallback = new SendCallback() {
+        @Override
+        public void onSent() {
+          onResult(null);
+        }
 
-    if (targetDevice == null) {
+        @Override
+        public void onError(String error) {
+          onResult(error);
+        }
+
+        private void onResult(String error) {
+          synchronized (results) {
+            results.put(uuid, error);
+          }
+          if (remaining.decrementAndGet() == 0) {
+            broadcastCallback.onComplete(results);
+          }
+        }
+      };
+      MessageEngine.Payload shared = encoded;
+      if (!queue.thread.post(() -> deliver(queue, shared, payload.length, priority, sendCallback))) {
+        sendCallback.onError("Device disconnected");
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sends an encoded message through the central's L2CAP channel when it is
+   * large and one is open, through notifications otherwise. Runs on the
+   * central's thread.
+   *
+   * @param length Length of the message before compression
+   */
+  private void deliver(DeviceQueue queue, MessageEngine.Payload encoded, int length, int priority,
+      SendCallback sendCallback) {
+    L2capChannel channel = l2capChannels.get(queue.device.getAddress());
+    // Realtime messages stay on GATT rather than wait behind L2CAP writes
+    if (length >= Utils.L2CAP_TRANSFER_THRESHOLD && priority != MessageEngine.PRIORITY_REALTIME
+        && channel != null && !channel.isClosed()) {
+      Log.d(TAG, "Sending " + length + " bytes to " + Utils.getDeviceUUID(queue.device.getAddress())
+          + " over L2CAP");
+      channel.send(encoded.data, encoded.flags, new SendCallback() {
+        @Override
+        public void onSent() {
+          if (sendCallback != null) {
+            sendCallback.onSent();
+          }
+        }
+
+        @Override
+        public void onError(String error) {
+          Log.e(TAG, error + ", falling back to notifications");
+          if (!queue.thread.post(() -> queueMessage(queue, encoded, length, priority, sendCallback))
+              && sendCallback != null) {
+            sendCallback.onError("Device disconnected");
+          }
+        }
+      });
+      return;
+    }
+    queueMessage(queue, encoded, length, priority, sendCallback);
+  }
+
+  private void queueMessage(DeviceQueue queue, MessageEngine.Payload encoded, int length, int priority,
+      SendCallback sendCallback) {
+    Log.d(TAG, "Queueing " + length + " bytes for " + Utils.getDeviceUUID(queue.device.getAddress()));
+    if (length >= Utils.BULK_TRANSFER_THRESHOLD) {
+      startBulkTransfer(queue);
+    }
+    try {
+      queue.engine.send(encoded, priority, sendCallback);
+    } catch (RuntimeException e) {
+      if (sendCallback != null) {
+        sendCallback.onError(e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Sets the preferred PHY used with a central. The connection priority can
+   * only be requested by the central.
+   *
+   * @param phy              One of BluetoothDevice.PHY_LE_*_MASK, null to
+   *                         keep the current one
+   * @param autoBulkTransfer Whether large messages temporarily switch the link
+   *                         to 2M PHY, null to keep the current setting
+   */
+  public boolean setLinkProfile(String uuid, Integer phy, Boolean autoBulkTransfer) {
+    BluetoothDevice device = connectedDevices.get(uuid);
+    DeviceQueue queue = device != null ? sendQueues.get(device.getAddress()) : null;
+    if (queue == null) {
       Log.e(TAG, "Device not connected");
       throw new RuntimeException("Device not connected");
     }
-
-    BluetoothGattCharacteristic messageChar = service.getCharacteristic(Utils.MESSAGE_CHAR_UUID);
-    if (messageChar == null) {
-      Log.e(TAG, "Characteristic not found");
-      return false;
+    if (phy != null && !Utils.isPhySupported(bluetoothAdapter, phy)) {
+      throw new RuntimeException("PHY not supported");
     }
 
-    // Split the message into chunks and send them one by one
-    int messageLength = message.length();
-    int chunkSize = MAX_CHUNK_SIZE;
-    int offset = 0;
-    
-    while (offset < messageLength) {
-      int endIndex = Math.min(offset + chunkSize, messageLength);
-      String chunk = message.substring(offset, endIndex);
-      
-      // Set the chunk as the characteristic value
-      messageChar.setValue(chunk.getBytes(StandardCharsets.UTF_8));
-      
-      // Send notification to the central
-      if (ActivityCompat.checkSelfPermission(context,
-          Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-        throw new RuntimeException("BLUETOOTH_CONNECT permission missing");
+    boolean bulkTransfer;
+    synchronized (queue) {
+      if (phy != null) {
+        queue.linkPhy = phy;
       }
-      
-      Log.d(TAG, "Sending chunk: " + chunk + " (" + offset + "-" + endIndex + " of " + messageLength + ")");
-      boolean success = bluetoothGattServer.notifyCharacteristicChanged(
-          targetDevice,
-          messageChar,
-          false // No acknowledgment needed (use true for indications)
-      );
-      
-      if (!success) {
-        Log.e(TAG, "Failed to send notification");
-        return false;
+      if (autoBulkTransfer != null) {
+        queue.autoBulkTransfer = autoBulkTransfer;
       }
-      
-      // Move to next chunk
-      offset = endIndex;
-      
-      // Small delay to prevent packet loss
-      try {
-        Thread.sleep(20);
-      } catch (InterruptedException e) {
-        Log.e(TAG, "Sleep interrupted", e);
+      bulkTransfer = queue.bulkTransfer;
+    }
+    // During a bulk transfer the PHY is applied once it ends
+    if (phy != null && !bulkTransfer) {
+      setPreferredPhy(queue.device, phy);
+    }
+    return true;
+  }
+
+  private void startBulkTransfer(DeviceQueue queue) {
+    synchronized (queue) {
+      if (!queue.autoBulkTransfer || queue.bulkTransfer) {
+        return;
       }
+      queue.bulkTransfer = true;
+    }
+    if (Utils.isPhySupported(bluetoothAdapter, BluetoothDevice.PHY_LE_2M_MASK)) {
+      setPreferredPhy(queue.device, BluetoothDevice.PHY_LE_2M_MASK);
+    }
+  }
+
+  private void endBulkTransfer(DeviceQueue queue) {
+    int phy;
+    synchronized (queue) {
+      if (!queue.bulkTransfer) {
+        return;
+      }
+      queue.bulkTransfer = false;
+      phy = queue.linkPhy;
+    }
+    if (Utils.isPhySupported(bluetoothAdapter, BluetoothDevice.PHY_LE_2M_MASK)) {
+      setPreferredPhy(queue.device, phy);
+    }
+  }
+
+  private void setPreferredPhy(BluetoothDevice device, int phy) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || bluetoothGattServer == null) {
+      return;
     }
-    
-    // Send EOM marker
-    messageChar.setValue(EOM_MARKER.getBytes(StandardCharsets.UTF_8));
-    
     if (ActivityCompat.checkSelfPermission(context,
         Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
       throw new RuntimeException("BLUETOOTH_CONNECT permission missing");
     }
-    
-    Log.d(TAG, "Sending EOM marker");
-    boolean success = bluetoothGattServer.notifyCharacteristicChanged(
-        targetDevice,
-        messageChar,
-        false
-    );
-    
-    return success;
+    bluetoothGattServer.setPreferredPhy(device, phy, phy, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+  }
+
+  private BluetoothGattCharacteristic getMessageCharacteristic() {
+    if (bluetoothGattServer == null) {
+      return null;
+    }
+    BluetoothGattService service = bluetoothGattServer.getService(serviceUUID);
+    return service != null ? service.getCharacteristic(Utils.MESSAGE_CHAR_UUID) : null;
   }
 
   private void setupGattServer() {
@@ -244,7 +489,8 @@ public class PeripheralController {
     // Configure characteristic to hold your message
     BluetoothGattCharacteristic messageChar = new BluetoothGattCharacteristic(
         Utils.MESSAGE_CHAR_UUID,
-        BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+        BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_WRITE
+            | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
         BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
     
     // Add Client Characteristic Configuration Descriptor (CCCD) - required for notifications
@@ -256,6 +502,26 @@ public class PeripheralController {
     // Add the characteristic to the service
     service.addCharacteristic(messageChar);
 
+    // Advertise what this side supports, centrals read it and write theirs
+    BluetoothGattCharacteristic capabilitiesChar = new BluetoothGattCharacteristic(
+        Utils.CAPABILITIES_CHAR_UUID,
+        BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
+        BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+    capabilitiesChar.setValue(MessageEngine.encodeCapabilities(compressor));
+    service.addCharacteristic(capabilitiesChar);
+
+    // Publish the PSM of the L2CAP channel, centrals connect to it for large
+    // messages
+    int psm = useL2cap ? openL2capServer() : 0;
+    if (psm > 0) {
+      BluetoothGattCharacteristic psmChar = new BluetoothGattCharacteristic(
+          Utils.PSM_CHAR_UUID,
+          BluetoothGattCharacteristic.PROPERTY_READ,
+          BluetoothGattCharacteristic.PERMISSION_READ);
+      psmChar.setValue(new byte[] { (byte) psm, (byte) (psm >> 8) });
+      service.addCharacteristic(psmChar);
+    }
+
     // Add service to GATT server
     if (ActivityCompat.checkSelfPermission(context,
         Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
@@ -264,22 +530,97 @@ public class PeripheralController {
     bluetoothGattServer.addService(service);
   }
 
+  /**
+   * Starts accepting L2CAP channels from centrals
+   *
+   * @return The PSM to publish, 0 if L2CAP is not available
+   */
+  private int openL2capServer() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+      return 0;
+    }
+    if (ActivityCompat.checkSelfPermission(context,
+        Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+      throw new RuntimeException("BLUETOOTH_CONNECT permission missing");
+    }
+    BluetoothServerSocket serverSocket;
+    try {
+      serverSocket = bluetoothAdapter.listenUsingInsecureL2capChannel();
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to listen for L2CAP channels: " + e.getMessage());
+      return 0;
+    }
+    l2capServerSocket = serverSocket;
+
+    Thread acceptThread = new Thread(() -> {
+      while (true) {
+        BluetoothSocket socket;
+        try {
+          socket = serverSocket.accept();
+        } catch (IOException e) {
+          // Thrown once the server socket is closed
+          Log.d(TAG, "Stopped accepting L2CAP channels: " + e.getMessage());
+          return;
+        }
+        onL2capChannelAccepted(socket);
+      }
+    }, "BLEMessaging-L2CAP-accept");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+    Log.d(TAG, "Listening for L2CAP channels on PSM " + serverSocket.getPsm());
+    return serverSocket.getPsm();
+  }
+
+  private void onL2capChannelAccepted(BluetoothSocket socket) {
+    String address = socket.getRemoteDevice().getAddress();
+    String deviceUUID = Utils.getDeviceUUID(address);
+    Log.d(TAG, "L2CAP channel opened by " + deviceUUID);
+    L2capChannel channel = new L2capChannel(socket, false, getDictionary(), new L2capChannel.Listener() {
+      @Override
+      public void onMessage(L2capChannel channel, IncomingMessage message) {
+        notifyMessage(deviceUUID, message);
+      }
+
+      @Override
+      public void onClosed(L2capChannel channel) {
+        l2capChannels.remove(address, channel);
+      }
+    });
+    L2capChannel previous = l2capChannels.put(address, channel);
+    if (previous != null) {
+      previous.close();
+    }
+    channel.start();
+  }
+
   private final BluetoothGattServerCallback gattServerCallback = new BluetoothGattServerCallback() {
     @Override
     public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
       if (newState == BluetoothProfile.STATE_CONNECTED) {
         // Store connected device
         connectedDevices.add(device);
-        Log.d(TAG, "Connected to " + Utils.getDeviceUUID(device.getAddress()));
-        if (callback != null) {
-          JSObject ret = new JSObject();
-          ret.put("uuid", Utils.getDeviceUUID(device.getAddress()));
-          callback.notifyEvent("onDeviceConnected", ret);
+        DeviceQueue previous = sendQueues.put(device.getAddress(), createDeviceQueue(device));
+        if (previous != null) {
+          // Connected again without a disconnection event, the central
+          // starts over so the old queue's state is stale
+          closeDeviceQueue(previous, "Device reconnected");
         }
+        Log.d(TAG, "Connected to " + Utils.getDeviceUUID(device.getAddress()));
+        // onDeviceConnected is emitted once the central has exchanged the MTU
+        // or subscribed to notifications, whichever comes first
       }
       if (newState == BluetoothProfile.STATE_DISCONNECTED) {
         // Remove disconnected device
         connectedDevices.remove(device);
+        announcedDevices.remove(device.getAddress());
+        DeviceQueue queue = sendQueues.remove(device.getAddress());
+        if (queue != null) {
+          closeDeviceQueue(queue, "Device disconnected");
+        }
+        L2capChannel channel = l2capChannels.remove(device.getAddress());
+        if (channel != null) {
+          channel.close();
+        }
         Log.d(TAG, "Disconnected from " + Utils.getDeviceUUID(device.getAddress()));
         if (callback != null) {
           JSObject ret = new JSObject();
@@ -337,29 +678,18 @@ public class PeripheralController {
             value);
       }
       
-      String message = new String(value, StandardCharsets.UTF_8);
-      String deviceUUID = Utils.getDeviceUUID(device.getAddress());
-      Log.d(TAG, "Received message: " + message + " from " + deviceUUID);
-      
-      if (EOM_MARKER.equals(message)) {
-        Log.d(TAG, String.format("End of message marker received, full message: %s", pendingMessage));
-        // End of message reached, notify listeners
-        if (callback != null) {
-          JSObject ret = new JSObject();
-          ret.put("from", deviceUUID);
-          ret.put("message", pendingMessage != null ? pendingMessage : "");
-          callback.notifyEvent("onMessageReceived", ret);
-        }
-        // Reset pending message
-        pendingMessage = null;
-      } else {
-        // Append to or create pending message
-        if (pendingMessage == null) {
-          pendingMessage = message;
-        } else {
-          pendingMessage += message;
+      DeviceQueue queue = sendQueues.get(device.getAddress());
+      if (queue == null || value == null) {
+        return;
+      }
+      if (Utils.CAPABILITIES_CHAR_UUID.equals(characteristic.getUuid())) {
+        if (value.length >= 1) {
+          // Applied once the central subscribes
+          queue.thread.post(() -> queue.capabilities = value);
         }
+        return;
       }
+      queue.thread.post(() -> queue.transport.onFrameReceived(value));
     }
     
     @Override
@@ -398,6 +728,13 @@ public class PeripheralController {
         // Log the notification state
         if (java.util.Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
           Log.d(TAG, "Notifications enabled for " + Utils.getDeviceUUID(device.getAddress()));
+          DeviceQueue queue = sendQueues.get(device.getAddress());
+          if (queue != null) {
+            queue.thread.post(() -> {
+              onSubscribed(queue);
+              announceDevice(device);
+            });
+          }
         } else if (java.util.Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
           Log.d(TAG, "Notifications disabled for " + Utils.getDeviceUUID(device.getAddress()));
         }
@@ -410,113 +747,150 @@ public class PeripheralController {
     }
 
     @Override
-    public void onMtuChanged(BluetoothDevice device, int mtu) {
-      Log.d(TAG, "MTU changed: " + mtu);
+    public void onNotificationSent(BluetoothDevice device, int status) {
+      DeviceQueue queue = sendQueues.get(device.getAddress());
+      if (queue == null) {
+        return;
+      }
+
+      queue.thread.post(() -> queue.transport.onNotificationSent(status));
     }
-  };
 
-  private final AdvertiseCallback advertiseCallback = new AdvertiseCallback() {
     @Override
-    public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-      Log.d(TAG, "Advertising started successfully");
-      isAdvertising = true;
-      if (callback != null) {
-        callback.notifyEvent("onAdvertisingStarted", null);
-      }
+    public void onPhyUpdate(BluetoothDevice device, int txPhy, int rxPhy, int status) {
+      Log.d(TAG, "PHY updated for " + Utils.getDeviceUUID(device.getAddress()) + ": tx " + txPhy + ", rx " + rxPhy
+          + ", status " + status);
     }
 
     @Override
-    public void onStartFailure(int errorCode) {
-      Log.e(TAG, "Advertising failed with error code: " + errorCode);
-      isAdvertising = false;
-      if (callback != null) {
-        callback.notifyEvent("onAdvertisingFailed", null);
+    public void onMtuChanged(BluetoothDevice device, int mtu) {
+      Log.d(TAG, "MTU changed: " + mtu + " for " + Utils.getDeviceUUID(device.getAddress()));
+      DeviceQueue queue = sendQueues.get(device.getAddress());
+      if (queue != null) {
+        queue.thread.post(() -> {
+          queue.transport.setMtu(mtu);
+          announceDevice(device);
+        });
       }
     }
   };
 
-  private void sendNextChunk() {
-    if (pendingMessage == null || currentDeviceUuid == null) {
+  /**
+   * Sends the messages held until the central subscribed. Centrals that know
+   * about framing write their capabilities before subscribing, the others
+   * predate it and only take text ended by EOM.
+   */
+  private void onSubscribed(DeviceQueue queue) {
+    if (queue.engine.hasPeerCapabilities()) {
       return;
     }
-
-    Log.d(TAG, "Sending next chunk" + " (" + (messageIndex) + "/" + pendingMessage.length() + ")");
-    // Check if we're done with the message
-    if (messageIndex >= pendingMessage.length()) {
-      // Send EOM marker
-      sendEOMMarker();
-      return;
+    byte[] value = queue.capabilities;
+    // Before the held messages go out, so their frames are numbered
+    queue.reliableTransport.setEnabled(value != null && value.length >= 1
+        && (value[0] & MessageEngine.CAPABILITY_ARQ) != 0);
+    queue.reliableTransport.setPassThrough(value == null);
+    queue.engine.setPeerCapabilities(value);
+    String deviceUUID = Utils.getDeviceUUID(queue.device.getAddress());
+    if (value != null) {
+      Log.d(TAG, "Capabilities of " + deviceUUID + ": " + (value[0] & 0xFF)
+          + (queue.engine.hasSharedDictionary() ? ", shared dictionary" : ""));
+    } else {
+      Log.d(TAG, deviceUUID + " predates framing, sending text ended by EOM");
     }
+  }
 
-    BluetoothGattService service = bluetoothGattClient.getService(serviceUUID);
-    if (service == null) {
-      Log.e(TAG, "Service not found");
+  private void announceDevice(BluetoothDevice device) {
+    if (announcedDevices.put(device.getAddress(), true) != null) {
       return;
     }
-
-    BluetoothGattCharacteristic messageChar = service.getCharacteristic(Utils.MESSAGE_CHAR_UUID);
-    if (messageChar == null) {
-      Log.e(TAG, "Characteristic not found");
-      return;
+    if (callback != null) {
+      JSObject ret = new JSObject();
+      ret.put("uuid", Utils.getDeviceUUID(device.getAddress()));
+      ret.put("mtu", getMtu(device));
+      callback.notifyEvent("onDeviceConnected", ret);
     }
+  }
 
-    // Calculate chunk size
-    int endIndex = Math.min(messageIndex + MAX_CHUNK_SIZE, pendingMessage.length());
-    String chunk = pendingMessage.substring(messageIndex, endIndex);
-
-    // Update the message index for next chunk
-    messageIndex = endIndex;
+  private int getMtu(BluetoothDevice device) {
+    DeviceQueue queue = sendQueues.get(device.getAddress());
+    return queue != null ? queue.transport.getMtu() : Utils.DEFAULT_MTU;
+  }
 
-    Log.d(TAG, "Sending chunk: " + chunk + " (" + (messageIndex) + "/" + pendingMessage.length() + ")");
+  /**
+   * Rejects the queue's messages and stops its thread once they are
+   * rejected
+   */
+  private void closeDeviceQueue(DeviceQueue queue, String error) {
+    queue.thread.post(() -> {
+      queue.engine.close(error);
+      queue.reliableTransport.close();
+      notifications.remove(queue.transport);
+    });
+    queue.thread.quit();
+  }
 
-    // Send the chunk
-    messageChar.setValue(chunk.getBytes(StandardCharsets.UTF_8));
+  private DeviceQueue createDeviceQueue(BluetoothDevice device) {
+    String deviceUUID = Utils.getDeviceUUID(device.getAddress());
+    HandlerScheduler thread = HandlerScheduler.start("BLEMessaging-" + deviceUUID);
+    GattServerTransport transport = new GattServerTransport(context, bluetoothGattServer,
+        getMessageCharacteristic(), device, notifications, thread);
+    DeviceQueue queue = new DeviceQueue(device, thread, transport, new MessageEngine.Listener() {
+      @Override
+      public void onMessage(IncomingMessage message) {
+        Log.d(TAG, "Message received from " + deviceUUID);
+        notifyMessage(deviceUUID, message);
+      }
 
-    if (ActivityCompat.checkSelfPermission(context,
-        Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-      throw new RuntimeException("BLUETOOTH_CONNECT permission missing");
-    }
+      @Override
+      public void onError(String error) {
+        Log.e(TAG, error);
+      }
 
-    boolean success = bluetoothGattClient.writeCharacteristic(messageChar);
+      @Override
+      public void onIdle() {
+        DeviceQueue current = sendQueues.get(device.getAddress());
+        if (current != null) {
+          // Nothing left to send, drop back to the regular PHY
+          endBulkTransfer(current);
+        }
+      }
+    });
+    queue.engine.setCompressor(compressor);
+    // Released once the central subscribes, see onSubscribed
+    queue.engine.awaitPeerCapabilities();
+    return queue;
+  }
 
-    if (!success) {
-      Log.e(TAG, "Failed to write characteristic");
-      // Reset sending state
-      pendingMessage = null;
-      messageIndex = 0;
-      currentDeviceUuid = null;
-    }
+  private byte[] getDictionary() {
+    PayloadCompressor compressor = this.compressor;
+    return compressor != null ? compressor.getDictionary() : null;
   }
 
-  private void sendEOMMarker() {
-    BluetoothGattService service = bluetoothGattClient.getService(serviceUUID);
-    if (service == null) {
-      Log.e(TAG, "Service not found");
-      return;
+  private void notifyMessage(String deviceUUID, IncomingMessage message) {
+    if (callback != null) {
+      callback.notifyEvent("onMessageReceived", Utils.getMessageEvent(deviceUUID, message));
     }
+  }
 
-    BluetoothGattCharacteristic messageChar = service.getCharacteristic(Utils.MESSAGE_CHAR_UUID);
-    if (messageChar == null) {
-      Log.e(TAG, "Characteristic not found");
-      return;
+  private final AdvertiseCallback advertiseCallback = new AdvertiseCallback() {
+    @Override
+    public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+      Log.d(TAG, "Advertising started successfully");
+      isAdvertising = true;
+      if (callback != null) {
+        callback.notifyEvent("onAdvertisingStarted", null);
+      }
     }
 
-    Log.d(TAG, "Sending EOM marker");
-
-    messageChar.setValue(EOM_MARKER.getBytes(StandardCharsets.UTF_8));
-
-    if (ActivityCompat.checkSelfPermission(context,
-        Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-      throw new RuntimeException("BLUETOOTH_CONNECT permission missing");
+    @Override
+    public void onStartFailure(int errorCode) {
+      Log.e(TAG, "Advertising failed with error code: " + errorCode);
+      isAdvertising = false;
+      if (callback != null) {
+        callback.notifyEvent("onAdvertisingFailed", null);
+      }
     }
-
-    boolean success = bluetoothGattClient.writeCharacteristic(messageChar);
-
-    // Reset sending state regardless of success
-    pendingMessage = null;
-    messageIndex = 0;
-    currentDeviceUuid = null;
-  }
+  };
 
   public boolean isAdvertising() {
     return isAdvertising;
@@ -529,36 +903,55 @@ public class PeripheralController {
   public void cleanup() {
     // Stop advertising if running
     if (isAdvertising) {
-        stopAdvertising();
+      stopAdvertising();
     }
-    
+
     // Close GATT server
     if (bluetoothGattServer != null) {
-        if (ActivityCompat.checkSelfPermission(context,
-            Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-            return;
-        }
-        bluetoothGattServer.close();
-        bluetoothGattServer = null;
+      if (ActivityCompat.checkSelfPermission(context,
+          Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+        return;
+      }
+      bluetoothGattServer.close();
+      bluetoothGattServer = null;
     }
-    
+
+    // Stop accepting L2CAP channels and close the open ones
+    if (l2capServerSocket != null) {
+      try {
+        l2capServerSocket.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Error closing L2CAP server: " + e.getMessage());
+      }
+      l2capServerSocket = null;
+    }
+    for (L2capChannel channel : l2capChannels.values()) {
+      channel.close();
+    }
+    l2capChannels.clear();
+
     // Close any GATT client connection (if applicable)
     if (bluetoothGattClient != null) {
-        if (ActivityCompat.checkSelfPermission(context,
-            Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-            return;
-        }
-        bluetoothGattClient.close();
-        bluetoothGattClient = null;
+      if (ActivityCompat.checkSelfPermission(context,
+          Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+        return;
+      }
+      bluetoothGattClient.close();
+      bluetoothGattClient = null;
     }
     
+    // Reject anything still queued
+    for (DeviceQueue queue : sendQueues.values()) {
+      queue.engine.close("Peripheral cleaned up");
+      queue.reliableTransport.close();
+      notifications.remove(queue.transport);
+      queue.thread.quit();
+    }
+    sendQueues.clear();
+
     // Clear connected devices
     connectedDevices.clear();
-    
-    // Reset message variables
-    pendingMessage = null;
-    messageIndex = 0;
-    currentDeviceUuid = null;
+    announcedDevices.clear();
     
     Log.d(TAG, "PeripheralController resources cleaned up");
   }
@@ -0,0 +1,547 @@
+package com.albermonte.plugins.blemessaging;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Selective repeat ARQ over a transport that does not confirm delivery, such
+ * as writes without response or notifications. Outgoing packets are numbered
+ * and kept until the peer acknowledges them; the receiver answers on the same
+ * link with the next sequence it expects and a bitmap of the packets it holds
+ * past it, so only the missing ones are sent again. Incoming packets are
+ * handed up once and in order.
+ *
+ * <pre>
+ * data  0x80, u16 sequence, frame
+ * ack   0x81, u16 next expected sequence, bitmap of the following sequences
+ * </pre>
+ *
+ * A packet still unacknowledged after MAX_RETRANSMISSIONS is taken as a
+ * sign that the peer is gone: everything buffered is dropped, the listener
+ * is told through onTransportFailed and later sends are refused. Once
+ * enabled the listener is also told which packets the peer confirmed,
+ * through onPacketsDelivered.
+ *
+ * Until enabled, for peers that do not advertise
+ * MessageEngine.CAPABILITY_ARQ, packets are passed through as is. Numbered
+ * packets from the peer are accepted and acknowledged either way, unless the
+ * peer predates FrameCodec and its text chunks may look numbered.
+ */
+public class ReliableTransport implements Transport, Transport.Listener {
+  public static final int PACKET_DATA = 0x80;
+  public static final int PACKET_ACK = 0x81;
+  public static final int DATA_HEADER_SIZE = 3;
+  private static final int ACK_HEADER_SIZE = 3;
+  // Most packets sent and not acknowledged, and most kept out of order
+  public static final int WINDOW_SIZE = 32;
+  private static final int SEQUENCE_MASK = 0xFFFF;
+  // In order packets received before an acknowledgement is sent right away
+  private static final int ACK_EVERY = 8;
+  private static final long ACK_DELAY_MILLIS = 20;
+  private static final long INITIAL_RTO_MILLIS = 1000;
+  private static final long MIN_RTO_MILLIS = 100;
+  private static final long MAX_RTO_MILLIS = 8000;
+  private static final long NOT_SENT = Long.MAX_VALUE;
+  // Times a packet is sent again before the peer is given up on, about 40
+  // seconds of silence with the backoff
+  public static final int MAX_RETRANSMISSIONS = 6;
+
+  private enum Kind {
+    PLAIN, DATA, RETRANSMISSION, ACK
+  }
+
+  private final Transport link;
+  private final Scheduler scheduler;
+  private volatile Listener listener;
+  // Whether every incoming packet is handed up as is, see setPassThrough
+  private volatile boolean passThrough = false;
+
+  // Sender state, guarded by this
+  private boolean enabled = false;
+  private boolean closed = false;
+  private final byte[][] sendBuffer = new byte[WINDOW_SIZE][];
+  private final long[] sentAt = new long[WINDOW_SIZE];
+  // Order of the last transmission of each packet, NOT_SENT until the first
+  private final long[] sentOrder = new long[WINDOW_SIZE];
+  private final int[] timesRetransmitted = new int[WINDOW_SIZE];
+  private final boolean[] queuedForRetransmission = new boolean[WINDOW_SIZE];
+  private final ArrayDeque<Integer> retransmissions = new ArrayDeque<>();
+  // Oldest unacknowledged sequence and next one to assign
+  private int sendBase = 0;
+  private int sendNext = 0;
+  private long transmissions = 0;
+  private int retransmissionCount = 0;
+  // Packet from the listener waiting for the link
+  private byte[] nextPacket = null;
+  private Kind nextKind = null;
+  private byte[] ackPacket = null;
+  // What the link is sending, null when idle
+  private Kind transmitting = null;
+  // Set when onPacketSent is held back until the window has room
+  private boolean listenerBlocked = false;
+  private boolean retransmitTimerArmed = false;
+  private long smoothedRtt = -1;
+  private long rttVariation = 0;
+  private long rto = INITIAL_RTO_MILLIS;
+
+  // Receiver state, guarded by receiveLock which is never taken while
+  // holding this
+  private final Object receiveLock = new Object();
+  private final byte[][] receiveBuffer = new byte[WINDOW_SIZE][];
+  private int receiveNext = 0;
+  private int unacknowledged = 0;
+  private boolean ackTimerArmed = false;
+
+  public ReliableTransport(Transport link, Scheduler scheduler) {
+    this.link = link;
+    this.scheduler = scheduler;
+    link.setListener(this);
+  }
+
+  /**
+   * @param enabled Whether outgoing packets are numbered and retransmitted,
+   *                only once the peer advertises CAPABILITY_ARQ
+   */
+  public synchronized void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public synchronized boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public boolean confirmsDelivery() {
+    return isEnabled();
+  }
+
+  /**
+   * @param passThrough Whether incoming packets are handed up as is, even
+   *                    those that look numbered, for peers that predate
+   *                    FrameCodec
+   */
+  public void setPassThrough(boolean passThrough) {
+    this.passThrough = passThrough;
+  }
+
+  /**
+   * @return How many packets were sent again so far
+   */
+  public synchronized int getRetransmissionCount() {
+    return retransmissionCount;
+  }
+
+  /**
+   * Stops retransmitting and drops everything buffered, typically on
+   * disconnection
+   */
+  public void close() {
+    synchronized (receiveLock) {
+      Arrays.fill(receiveBuffer, null);
+    }
+    synchronized (this) {
+      closed = true;
+      Arrays.fill(sendBuffer, null);
+      retransmissions.clear();
+      nextPacket = null;
+      ackPacket = null;
+    }
+  }
+
+  /**
+   * @return Offset of the message frame in a packet, -1 for acknowledgements
+   */
+  public static int getFrameOffset(byte[] packet) {
+    if (packet.length > 0 && (packet[0] & 0xFF) == PACKET_ACK) {
+      return -1;
+    }
+    return packet.length > 0 && (packet[0] & 0xFF) == PACKET_DATA ? DATA_HEADER_SIZE : 0;
+  }
+
+  @Override
+  public int getMaxPacketSize() {
+    // Reserved even when disabled, frames cut before the peer's capabilities
+    // are known must still fit once numbered
+    return link.getMaxPacketSize() - DATA_HEADER_SIZE;
+  }
+
+  @Override
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public boolean send(byte[] packet) {
+    synchronized (this) {
+      if (closed) {
+        return false;
+      }
+      if (enabled) {
+        int sequence = sendNext;
+        int slot = sequence % WINDOW_SIZE;
+        byte[] data = new byte[DATA_HEADER_SIZE + packet.length];
+        data[0] = (byte) PACKET_DATA;
+        data[1] = (byte) (sequence >>> 8);
+        data[2] = (byte) sequence;
+        System.arraycopy(packet, 0, data, DATA_HEADER_SIZE, packet.length);
+        sendBuffer[slot] = data;
+        sentOrder[slot] = NOT_SENT;
+        timesRetransmitted[slot] = 0;
+        queuedForRetransmission[slot] = false;
+        sendNext = (sequence + 1) & SEQUENCE_MASK;
+        nextPacket = data;
+        nextKind = Kind.DATA;
+      } else {
+        nextPacket = packet;
+        nextKind = Kind.PLAIN;
+      }
+    }
+    pump();
+    return true;
+  }
+
+  @Override
+  public void onPacketSent() {
+    boolean notify;
+    synchronized (this) {
+      Kind kind = transmitting;
+      transmitting = null;
+      notify = kind == Kind.PLAIN;
+      if (kind == Kind.DATA) {
+        // The listener sends its next packet once there is room for it
+        notify = hasRoom();
+        listenerBlocked = !notify;
+      }
+    }
+    if (notify) {
+      listener.onPacketSent();
+    }
+    pump();
+  }
+
+  @Override
+  public void onPacketFailed(String error) {
+    Kind kind;
+    synchronized (this) {
+      kind = transmitting;
+      if (kind == Kind.PLAIN) {
+        transmitting = null;
+      }
+    }
+    if (kind == Kind.PLAIN) {
+      listener.onPacketFailed(error);
+      pump();
+      return;
+    }
+    // Numbered packets are sent again once they time out, and the next
+    // acknowledgement covers a lost one
+    onPacketSent();
+  }
+
+  @Override
+  public void onPacketReceived(byte[] packet) {
+    int type = packet.length > 0 && !passThrough ? packet[0] & 0xFF : -1;
+    if (type == PACKET_DATA && packet.length > DATA_HEADER_SIZE) {
+      onData(packet);
+    } else if (type == PACKET_ACK && packet.length >= ACK_HEADER_SIZE) {
+      onAck(packet);
+    } else {
+      listener.onPacketReceived(packet);
+    }
+  }
+
+  /**
+   * Sends the next packet unless the link is busy. Acknowledgements go first,
+   * then retransmissions, then the listener's packet.
+   */
+  private void pump() {
+    byte[] packet = null;
+    Kind kind = null;
+    synchronized (this) {
+      if (closed || transmitting != null) {
+        return;
+      }
+      if (ackPacket != null) {
+        packet = ackPacket;
+        kind = Kind.ACK;
+        ackPacket = null;
+      }
+      while (packet == null && !retransmissions.isEmpty()) {
+        int sequence = retransmissions.poll();
+        int slot = sequence % WINDOW_SIZE;
+        if (isUnacknowledged(sequence)) {
+          queuedForRetransmission[slot] = false;
+          timesRetransmitted[slot]++;
+          retransmissionCount++;
+          markSent(slot);
+          packet = sendBuffer[slot];
+          kind = Kind.RETRANSMISSION;
+        }
+      }
+      if (packet == null && nextPacket != null) {
+        packet = nextPacket;
+        kind = nextKind;
+        nextPacket = null;
+        if (kind == Kind.DATA) {
+          markSent(getSequence(packet) % WINDOW_SIZE);
+        }
+      }
+      if (packet == null) {
+        return;
+      }
+      transmitting = kind;
+      if (kind == Kind.DATA || kind == Kind.RETRANSMISSION) {
+        armRetransmitTimer();
+      }
+    }
+    if (!link.send(packet)) {
+      // No callback follows, handled like a failed packet
+      onPacketFailed("Unable to send packet");
+    }
+  }
+
+  private void onData(byte[] packet) {
+    int sequence = getSequence(packet);
+    byte[] ack = null;
+    synchronized (receiveLock) {
+      int offset = (sequence - receiveNext) & SEQUENCE_MASK;
+      boolean ackNow = true;
+      if (offset < WINDOW_SIZE) {
+        int slot = sequence % WINDOW_SIZE;
+        boolean duplicate = receiveBuffer[slot] != null;
+        if (!duplicate) {
+          receiveBuffer[slot] = Arrays.copyOfRange(packet, DATA_HEADER_SIZE, packet.length);
+        }
+        // Delivered under the lock so that frames reach the listener in order
+        while (receiveBuffer[receiveNext % WINDOW_SIZE] != null) {
+          int next = receiveNext % WINDOW_SIZE;
+          byte[] frame = receiveBuffer[next];
+          receiveBuffer[next] = null;
+          receiveNext = (receiveNext + 1) & SEQUENCE_MASK;
+          unacknowledged++;
+          listener.onPacketReceived(frame);
+        }
+        // A gap or a duplicate is reported right away so the sender reacts
+        ackNow = duplicate || offset != 0 || hasGap() || unacknowledged >= ACK_EVERY;
+      }
+      // Otherwise already delivered, the acknowledgement was probably lost
+      if (ackNow) {
+        ack = buildAck();
+      } else if (!ackTimerArmed) {
+        ackTimerArmed = true;
+        scheduler.schedule(this::onAckTimer, ACK_DELAY_MILLIS);
+      }
+    }
+    if (ack != null) {
+      queueAck(ack);
+    }
+  }
+
+  private void onAckTimer() {
+    byte[] ack = null;
+    synchronized (receiveLock) {
+      ackTimerArmed = false;
+      if (unacknowledged > 0) {
+        ack = buildAck();
+      }
+    }
+    if (ack != null) {
+      queueAck(ack);
+    }
+  }
+
+  private void queueAck(byte[] ack) {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      // A newer acknowledgement replaces one not sent yet
+      ackPacket = ack;
+    }
+    pump();
+  }
+
+  private void onAck(byte[] packet) {
+    int cumulative = getSequence(packet);
+    boolean notify = false;
+    int delivered;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      int inFlight = (sendNext - sendBase) & SEQUENCE_MASK;
+      int advance = (cumulative - sendBase) & SEQUENCE_MASK;
+      if (advance > inFlight) {
+        // Older than acknowledgements already processed
+        return;
+      }
+      delivered = advance;
+      long now = scheduler.now();
+      long newestOrder = -1;
+      for (int i = 0; i < advance; i++) {
+        newestOrder = Math.max(newestOrder, acknowledge((sendBase + i) & SEQUENCE_MASK, now));
+      }
+      sendBase = cumulative;
+      inFlight -= advance;
+      for (int bit = 0; bit < (packet.length - ACK_HEADER_SIZE) * 8 && bit + 1 < inFlight; bit++) {
+        if ((packet[ACK_HEADER_SIZE + bit / 8] & (1 << (bit % 8))) != 0) {
+          newestOrder = Math.max(newestOrder, acknowledge((cumulative + 1 + bit) & SEQUENCE_MASK, now));
+        }
+      }
+      // Packets sent before one that got through are lost, send them again
+      for (int sequence = sendBase; sequence != sendNext; sequence = (sequence + 1) & SEQUENCE_MASK) {
+        int slot = sequence % WINDOW_SIZE;
+        if (sendBuffer[slot] != null && !queuedForRetransmission[slot] && sentOrder[slot] < newestOrder) {
+          queuedForRetransmission[slot] = true;
+          retransmissions.add(sequence);
+        }
+      }
+      if (listenerBlocked && hasRoom()) {
+        listenerBlocked = false;
+        notify = true;
+      }
+    }
+    if (delivered > 0) {
+      listener.onPacketsDelivered(delivered);
+    }
+    if (notify) {
+      listener.onPacketSent();
+    }
+    pump();
+  }
+
+  private void onRetransmitTimer() {
+    boolean failed = false;
+    synchronized (this) {
+      retransmitTimerArmed = false;
+      if (closed) {
+        return;
+      }
+      long now = scheduler.now();
+      long nextDeadline = Long.MAX_VALUE;
+      boolean expired = false;
+      for (int sequence = sendBase; sequence != sendNext; sequence = (sequence + 1) & SEQUENCE_MASK) {
+        int slot = sequence % WINDOW_SIZE;
+        if (sendBuffer[slot] == null || sentOrder[slot] == NOT_SENT || queuedForRetransmission[slot]) {
+          continue;
+        }
+        long deadline = sentAt[slot] + rto;
+        if (deadline <= now && timesRetransmitted[slot] >= MAX_RETRANSMISSIONS) {
+          failed = true;
+          break;
+        } else if (deadline <= now) {
+          queuedForRetransmission[slot] = true;
+          retransmissions.add(sequence);
+          expired = true;
+        } else {
+          nextDeadline = Math.min(nextDeadline, deadline);
+        }
+      }
+      if (expired) {
+        // Back off while the peer does not answer
+        rto = Math.min(rto * 2, MAX_RTO_MILLIS);
+      }
+      if (!failed && nextDeadline != Long.MAX_VALUE) {
+        retransmitTimerArmed = true;
+        scheduler.schedule(this::onRetransmitTimer, nextDeadline - now);
+      }
+    }
+    if (failed) {
+      close();
+      listener.onTransportFailed("Peer stopped acknowledging packets");
+      return;
+    }
+    pump();
+  }
+
+  /**
+   * @return Transmission order of the packet if it was waiting for an
+   *         acknowledgement, -1 otherwise
+   */
+  private long acknowledge(int sequence, long now) {
+    int slot = sequence % WINDOW_SIZE;
+    if (sendBuffer[slot] == null || sentOrder[slot] == NOT_SENT) {
+      return -1;
+    }
+    // Samples from retransmitted packets are ambiguous
+    if (timesRetransmitted[slot] == 0) {
+      updateRto(now - sentAt[slot]);
+    }
+    sendBuffer[slot] = null;
+    queuedForRetransmission[slot] = false;
+    return sentOrder[slot];
+  }
+
+  private void updateRto(long sample) {
+    if (smoothedRtt < 0) {
+      smoothedRtt = sample;
+      rttVariation = sample / 2;
+    } else {
+      rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - sample)) / 4;
+      smoothedRtt = (7 * smoothedRtt + sample) / 8;
+    }
+    rto = Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS,
+        smoothedRtt + Math.max(4 * rttVariation, 1) + ACK_DELAY_MILLIS));
+  }
+
+  private void armRetransmitTimer() {
+    if (!retransmitTimerArmed) {
+      retransmitTimerArmed = true;
+      scheduler.schedule(this::onRetransmitTimer, rto);
+    }
+  }
+
+  private void markSent(int slot) {
+    sentAt[slot] = scheduler.now();
+    sentOrder[slot] = transmissions++;
+  }
+
+  private boolean hasRoom() {
+    return ((sendNext - sendBase) & SEQUENCE_MASK) < WINDOW_SIZE;
+  }
+
+  private boolean isUnacknowledged(int sequence) {
+    return ((sequence - sendBase) & SEQUENCE_MASK) < ((sendNext - sendBase) & SEQUENCE_MASK)
+        && sendBuffer[sequence % WINDOW_SIZE] != null;
+  }
+
+  /**
+   * @return true if packets past a missing one are held
+   */
+  private boolean hasGap() {
+    for (byte[] frame : receiveBuffer) {
+      if (frame != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Builds an acknowledgement of everything received so far
+   */
+  private byte[] buildAck() {
+    int last = 0;
+    for (int i = 1; i < WINDOW_SIZE; i++) {
+      if (receiveBuffer[(receiveNext + i) % WINDOW_SIZE] != null) {
+        last = i;
+      }
+    }
+    byte[] ack = new byte[ACK_HEADER_SIZE + (last + 7) / 8];
+    ack[0] = (byte) PACKET_ACK;
+    ack[1] = (byte) (receiveNext >>> 8);
+    ack[2] = (byte) receiveNext;
+    // Bit i stands for sequence receiveNext + 1 + i
+    for (int i = 1; i <= last; i++) {
+      if (receiveBuffer[(receiveNext + i) % WINDOW_SIZE] != null) {
+        ack[ACK_HEADER_SIZE + (i - 1) / 8] |= (byte) (1 << ((i - 1) % 8));
+      }
+    }
+    unacknowledged = 0;
+    return ack;
+  }
+
+  private static int getSequence(byte[] packet) {
+    return ((packet[1] & 0xFF) << 8) | (packet[2] & 0xFF);
+  }
+}
@@ -0,0 +1,175 @@
+package com.albermonte.plugins.blemessaging;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Devices seen while scanning, keyed by device UUID, with when each was last
+ * seen and its signal strength. Scan results only update the cache; flush
+ * collects what changed since the previous call and evicts devices not seen
+ * for the TTL, so the central can report a crowded room with one event per
+ * interval rather than one per advertisement.
+ *
+ * RSSI readings jump by several dBm between advertisements, so each entry
+ * keeps an exponential moving average that ranks devices by proximity.
+ */
+class ScanCache {
+  // Weight of a new reading in the smoothed RSSI, lower is steadier but
+  // slower to follow a device that moves
+  static final double RSSI_SMOOTHING = 0.25;
+
+  static final class Entry {
+    final BluetoothDevice device;
+    final String uuid;
+    // Guarded by the entry
+    long lastSeen;
+    int rssi;
+    double smoothedRssi;
+    // Whether found has been reported, and whether it was seen since the
+    // last flush
+    boolean announced = false;
+    boolean changed = true;
+
+    Entry(BluetoothDevice device, String uuid, int rssi) {
+      this.device = device;
+      this.uuid = uuid;
+      this.smoothedRssi = rssi;
+    }
+
+    synchronized int getRssi() {
+      return rssi;
+    }
+
+    /**
+     * @return Average of the readings so far, weighted towards recent ones
+     */
+    synchronized double getSmoothedRssi() {
+      return smoothedRssi;
+    }
+
+    synchronized long getLastSeen() {
+      return lastSeen;
+    }
+  }
+
+  static final class Changes {
+    final List<Entry> found = new ArrayList<>();
+    final List<Entry> updated = new ArrayList<>();
+    final List<String> lost = new ArrayList<>();
+
+    boolean isEmpty() {
+      return found.isEmpty() && updated.isEmpty() && lost.isEmpty();
+    }
+  }
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private volatile long ttl;
+
+  /**
+   * @param ttl Milliseconds after which a device not seen again is lost
+   */
+  ScanCache(long ttl) {
+    this.ttl = ttl;
+  }
+
+  void setTtl(long ttl) {
+    this.ttl = ttl;
+  }
+
+  /**
+   * Records an advertisement
+   *
+   * @param now Time it was received, in milliseconds
+   */
+  void onResult(BluetoothDevice device, int rssi, long now) {
+    String uuid = Utils.getDeviceUUID(device.getAddress());
+    Entry entry = entries.get(uuid);
+    if (entry == null) {
+      entry = new Entry(device, uuid, rssi);
+      Entry existing = entries.putIfAbsent(uuid, entry);
+      if (existing != null) {
+        entry = existing;
+      }
+    }
+    synchronized (entry) {
+      entry.smoothedRssi += RSSI_SMOOTHING * (rssi - entry.smoothedRssi);
+      entry.lastSeen = now;
+      entry.rssi = rssi;
+      entry.changed = true;
+    }
+  }
+
+  /**
+   * @param now     Current time, in milliseconds
+   * @param evict   Whether to drop devices not seen for the TTL, only
+   *                meaningful while scanning
+   * @return Devices found or seen again since the last flush, and those lost
+   */
+  Changes flush(long now, boolean evict) {
+    Changes changes = new Changes();
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      synchronized (entry) {
+        if (evict && now - entry.lastSeen > ttl) {
+          iterator.remove();
+          if (entry.announced) {
+            changes.lost.add(entry.uuid);
+          }
+          continue;
+        }
+        if (!entry.changed) {
+          continue;
+        }
+        entry.changed = false;
+        if (entry.announced) {
+          changes.updated.add(entry);
+        } else {
+          entry.announced = true;
+          changes.found.add(entry);
+        }
+      }
+    }
+    return changes;
+  }
+
+  /**
+   * @return The device with this UUID, null if it was never seen or is lost
+   */
+  BluetoothDevice get(String uuid) {
+    Entry entry = uuid != null ? entries.get(uuid) : null;
+    return entry != null ? entry.device : null;
+  }
+
+  /**
+   * @param now   Current time, in milliseconds
+   * @param limit Maximum number of devices returned, 0 for all of them
+   * @return Devices seen within the TTL, strongest smoothed signal first
+   */
+  List<Entry> nearest(long now, int limit) {
+    List<Entry> nearest = new ArrayList<>();
+    for (Entry entry : entries.values()) {
+      if (now - entry.getLastSeen() <= ttl) {
+        nearest.add(entry);
+      }
+    }
+    nearest.sort((a, b) -> Double.compare(b.getSmoothedRssi(), a.getSmoothedRssi()));
+    if (limit > 0 && nearest.size() > limit) {
+      return new ArrayList<>(nearest.subList(0, limit));
+    }
+    return nearest;
+  }
+
+  boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  void clear() {
+    entries.clear();
+  }
+}
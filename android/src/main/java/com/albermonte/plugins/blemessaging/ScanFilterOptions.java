@@ -0,0 +1,110 @@
+package com.albermonte.plugins.blemessaging;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Which advertisements a scan reports. Manufacturer and service data are
+ * matched by the Bluetooth controller through the ScanFilter, so on chipsets
+ * that offload filtering other advertisements never wake the CPU. ScanFilter
+ * has no RSSI threshold, and device UUIDs are hashes of the MAC address, so
+ * those two are checked in software for every result.
+ */
+public class ScanFilterOptions {
+  private int minRssi = Integer.MIN_VALUE;
+  private Set<String> allowedDevices = null;
+  private int manufacturerId = -1;
+  private byte[] manufacturerData;
+  private byte[] manufacturerMask;
+  private UUID serviceDataUUID;
+  private byte[] serviceData;
+  private byte[] serviceDataMask;
+
+  /**
+   * @param minRssi Weaker advertisements are ignored, in dBm
+   */
+  public void setMinRssi(int minRssi) {
+    this.minRssi = minRssi;
+  }
+
+  /**
+   * @param uuids Only devices with these UUIDs are reported, null for any
+   */
+  public void setAllowedDevices(Iterable<String> uuids) {
+    if (uuids == null) {
+      allowedDevices = null;
+      return;
+    }
+    allowedDevices = new HashSet<>();
+    for (String uuid : uuids) {
+      allowedDevices.add(uuid.toUpperCase());
+    }
+  }
+
+  /**
+   * @param companyId Bluetooth SIG company identifier
+   * @param data      Bytes the manufacturer data starts with
+   * @param mask      Bits of data that must match, null for all of them
+   */
+  public void setManufacturerData(int companyId, byte[] data, byte[] mask) {
+    if (companyId < 0 || companyId > 0xFFFF) {
+      throw new IllegalArgumentException("Invalid company identifier: " + companyId);
+    }
+    checkMask(data, mask);
+    manufacturerId = companyId;
+    manufacturerData = data;
+    manufacturerMask = mask;
+  }
+
+  /**
+   * @param uuid Service the data is advertised for
+   * @param data Bytes the service data starts with
+   * @param mask Bits of data that must match, null for all of them
+   */
+  public void setServiceData(UUID uuid, byte[] data, byte[] mask) {
+    checkMask(data, mask);
+    serviceDataUUID = uuid;
+    serviceData = data;
+    serviceDataMask = mask;
+  }
+
+  private static void checkMask(byte[] data, byte[] mask) {
+    if (data == null) {
+      throw new IllegalArgumentException("Filter data is required");
+    }
+    if (mask != null && mask.length != data.length) {
+      throw new IllegalArgumentException("Filter mask must be as long as its data");
+    }
+  }
+
+  /**
+   * @return Hardware filter matching the service and the advertised data
+   */
+  ScanFilter toScanFilter(UUID serviceUUID) {
+    ScanFilter.Builder builder = new ScanFilter.Builder()
+        .setServiceUuid(new ParcelUuid(serviceUUID));
+    if (manufacturerData != null) {
+      builder.setManufacturerData(manufacturerId, manufacturerData, manufacturerMask);
+    }
+    if (serviceData != null) {
+      builder.setServiceData(new ParcelUuid(serviceDataUUID), serviceData, serviceDataMask);
+    }
+    return builder.build();
+  }
+
+  /**
+   * @return Whether a result the hardware filter let through is reported
+   */
+  boolean accepts(ScanResult result) {
+    if (result.getRssi() < minRssi) {
+      return false;
+    }
+    Set<String> allowed = allowedDevices;
+    return allowed == null || allowed.contains(Utils.getDeviceUUID(result.getDevice().getAddress()));
+  }
+}
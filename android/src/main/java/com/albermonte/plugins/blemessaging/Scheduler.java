@@ -0,0 +1,18 @@
+package com.albermonte.plugins.blemessaging;
+
+/**
+ * Clock and timers used by the protocol layers, so tests can drive them with
+ * a virtual clock.
+ */
+public interface Scheduler {
+  /**
+   * @return Monotonic time in milliseconds
+   */
+  long now();
+
+  /**
+   * Runs a task once after a delay. There is no cancellation, tasks check
+   * whether they are still needed when they run.
+   */
+  void schedule(Runnable task, long delayMillis);
+}
@@ -0,0 +1,11 @@
+package com.albermonte.plugins.blemessaging;
+
+public interface SendCallback {
+  /**
+   * Called once the peer confirms the message, or once its last frame is
+   * written when the transport does not confirm delivery
+   */
+  void onSent();
+
+  void onError(String message);
+}
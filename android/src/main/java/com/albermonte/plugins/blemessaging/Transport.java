@@ -0,0 +1,49 @@
+package com.albermonte.plugins.blemessaging;
+
+/**
+ * A packet link to a single peer, such as a GATT characteristic. Packets are
+ * sent one at a time: after send returns true, exactly one onPacketSent or
+ * onPacketFailed is reported before the next packet is sent.
+ */
+public interface Transport {
+  /**
+   * @return Bytes available per packet
+   */
+  int getMaxPacketSize();
+
+  /**
+   * @return false if the packet could not be handed to the link, no
+   *         callback follows in that case
+   */
+  boolean send(byte[] packet);
+
+  void setListener(Listener listener);
+
+  /**
+   * @return Whether the peer confirms the packets sent from now on, see
+   *         Listener.onPacketsDelivered
+   */
+  default boolean confirmsDelivery() {
+    return false;
+  }
+
+  interface Listener {
+    void onPacketSent();
+
+    void onPacketFailed(String error);
+
+    void onPacketReceived(byte[] packet);
+
+    /**
+     * Called by transports that confirm delivery as the peer confirms
+     * the count oldest packets not confirmed yet
+     */
+    default void onPacketsDelivered(int count) {}
+
+    /**
+     * Called when the transport gives up on the peer. Packets not
+     * confirmed yet are lost and later ones are refused.
+     */
+    default void onTransportFailed(String error) {}
+  }
+}
@@ -1,60 +1,100 @@
 package com.albermonte.plugins.blemessaging;
 
-import android.Manifest;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.content.Context;
-import android.content.pm.PackageManager;
-import android.util.Log;
+import android.os.Build;
+import android.util.Base64;
 
-import androidx.core.app.ActivityCompat;
+import com.getcapacitor.JSObject;
 
 import java.nio.charset.StandardCharsets;
-import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Utils {
-  private static final String TAG = "BLEMessaging/Utils";
   public static final UUID MESSAGE_CHAR_UUID = UUID.fromString("08590F7E-DB05-467E-8757-72F6FAEB13D4");
+  // Holds the PSM of the peripheral's L2CAP channel, little endian
+  public static final UUID PSM_CHAR_UUID = UUID.fromString("3B1F6C2A-5E2D-4B8C-9A57-0C4D1E8F2A61");
+  // Capabilities of the peer, see MessageEngine.encodeCapabilities. Read by
+  // the central, written by the central with its own.
+  public static final UUID CAPABILITIES_CHAR_UUID = UUID.fromString("7C2E9B14-3A6F-4D0B-8E51-2F9A6C3D1B07");
   public static final UUID CCCD_UUID = UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
-  public static final int MAX_CHUNK_SIZE = 20; // BLE packet size limit
-  public static final String EOM_MARKER = "EOM"; // End of message marker
+  public static final int DEFAULT_MTU = 23; // ATT MTU before any exchange
+  public static final int MAX_MTU = 517; // Largest ATT MTU Android will negotiate
+  private static final int ATT_HEADER_SIZE = 3; // Opcode + attribute handle
+  // Messages from this size on switch the link to high priority and 2M PHY
+  public static final int BULK_TRANSFER_THRESHOLD = 4096;
+  // Messages from this size on go through the L2CAP channel when one is open
+  public static final int L2CAP_TRANSFER_THRESHOLD = 8192;
+  // Device UUIDs already derived, keyed by MAC address
+  private static final Map<String, String> deviceUUIDs = new ConcurrentHashMap<>();
+  private static final int MAX_CACHED_DEVICE_UUIDS = 1024;
+
   /**
-   * Checks if a device with the specified address is in the connected devices
-   * list
+   * Creates a deterministic UUID from a device address. The MD5 behind it is
+   * computed once per address, later calls are a map lookup.
    * 
-   * @param uuid The Bluetooth address to check
-   * @return true if the device is connected, false otherwise
+   * @param address The Bluetooth MAC address
+   * @return A UUID string derived from the MAC address
    */
-  public static boolean isDeviceConnected(String uuid, List<BluetoothDevice> connectedDevices, Context context) {
-    Log.d(TAG, "Checking if device is connected: " + uuid);
-    Log.d(TAG, "Connected devices: " + connectedDevices.size());
-    if (uuid == null || uuid.isEmpty() || connectedDevices.isEmpty()) {
-      return false;
-    }
-
-    for (BluetoothDevice device : connectedDevices) {
-      if (ActivityCompat.checkSelfPermission(context,
-          Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-        Log.e(TAG, "BLUETOOTH_CONNECT permission missing");
-        return false;
+  public static String getDeviceUUID(String address) {
+    String uuid = deviceUUIDs.get(address);
+    if (uuid == null) {
+      if (deviceUUIDs.size() >= MAX_CACHED_DEVICE_UUIDS) {
+        // Private addresses rotate, start over rather than grow forever
+        deviceUUIDs.clear();
       }
+      uuid = UUID.nameUUIDFromBytes(address.getBytes(StandardCharsets.UTF_8)).toString().toUpperCase();
+      deviceUUIDs.put(address, uuid);
+    }
+    return uuid;
+  }
 
-      if (getDeviceUUID(device.getAddress()).equals(uuid)) {
-        return true;
-      }
+  /**
+   * Builds the onMessageReceived payload. Binary messages are passed to JS as
+   * base64 in data, text messages as is in message.
+   *
+   * @param uuid UUID of the sending device
+   */
+  public static JSObject getMessageEvent(String uuid, IncomingMessage message) {
+    JSObject ret = new JSObject();
+    ret.put("from", uuid);
+    if (message.isBinary()) {
+      ret.put("data", Base64.encodeToString(message.getData(), Base64.NO_WRAP));
+    } else {
+      ret.put("message", message.getText());
     }
+    return ret;
+  }
 
-    return false;
+  /**
+   * Returns how many bytes fit in a single write or notification
+   *
+   * @param mtu The ATT MTU negotiated with the peer
+   * @return The usable payload size, mtu - 3
+   */
+  public static int getMaxPayloadSize(int mtu) {
+    return Math.max(mtu, DEFAULT_MTU) - ATT_HEADER_SIZE;
   }
 
   /**
-   * Creates a deterministic UUID from a device address
-   * 
-   * @param address The Bluetooth MAC address
-   * @return A UUID string derived from the MAC address
+   * Checks if the adapter can use a PHY
+   *
+   * @param phy One of BluetoothDevice.PHY_LE_*_MASK
+   * @return true if the PHY can be requested on this device
    */
-  public static String getDeviceUUID(String address) {
-    return UUID.nameUUIDFromBytes(address.getBytes(StandardCharsets.UTF_8)).toString().toUpperCase();
+  public static boolean isPhySupported(BluetoothAdapter bluetoothAdapter, int phy) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+      return phy == BluetoothDevice.PHY_LE_1M_MASK;
+    }
+    if (phy == BluetoothDevice.PHY_LE_2M_MASK) {
+      return bluetoothAdapter.isLe2MPhySupported();
+    }
+    if (phy == BluetoothDevice.PHY_LE_CODED_MASK) {
+      return bluetoothAdapter.isLeCodedPhySupported();
+    }
+    return true;
   }
 
 }
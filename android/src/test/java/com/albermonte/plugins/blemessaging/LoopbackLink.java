@@ -0,0 +1,132 @@
+package com.albermonte.plugins.blemessaging;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * In-memory link between two transports, driven by a virtual clock so tests
+ * are deterministic. Each packet takes latencyMicros to be sent and
+ * delivered, and may be lost or delayed past the packets sent after it. The
+ * link is also the scheduler of the timers running on that clock.
+ */
+public class LoopbackLink implements Scheduler {
+  private final int mtu;
+  private final long latencyMicros;
+  private final double lossRate;
+  private final double reorderRate;
+  private final Random random;
+  private final PriorityQueue<Event> events = new PriorityQueue<>();
+  private long now = 0;
+  private long nextEventId = 0;
+  private int packetsSent = 0;
+  private int packetsLost = 0;
+
+  public final Endpoint a = new Endpoint();
+  public final Endpoint b = new Endpoint();
+
+  private static class Event implements Comparable<Event> {
+    final long time;
+    final long id;
+    final Runnable action;
+
+    Event(long time, long id, Runnable action) {
+      this.time = time;
+      this.id = id;
+      this.action = action;
+    }
+
+    @Override
+    public int compareTo(Event other) {
+      return time != other.time ? Long.compare(time, other.time) : Long.compare(id, other.id);
+    }
+  }
+
+  public class Endpoint implements Transport {
+    private Listener listener;
+
+    @Override
+    public int getMaxPacketSize() {
+      return Utils.getMaxPayloadSize(mtu);
+    }
+
+    @Override
+    public boolean send(byte[] packet) {
+      if (packet.length > getMaxPacketSize()) {
+        throw new IllegalArgumentException("Packet of " + packet.length + " bytes exceeds the MTU");
+      }
+      Endpoint peer = this == a ? b : a;
+      byte[] copy = packet.clone();
+      packetsSent++;
+      schedule(latencyMicros, () -> listener.onPacketSent());
+      if (random.nextDouble() < lossRate) {
+        packetsLost++;
+      } else {
+        // A reordered packet is overtaken by the next few ones
+        long delay = random.nextDouble() < reorderRate ? 3 * latencyMicros + 1 : latencyMicros;
+        schedule(delay, () -> peer.listener.onPacketReceived(copy));
+      }
+      return true;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+      this.listener = listener;
+    }
+  }
+
+  public LoopbackLink(int mtu) {
+    this(mtu, 0, 0, 0, 1);
+  }
+
+  /**
+   * @param mtu           ATT MTU of the link
+   * @param latencyMicros Time each packet takes to be sent and delivered
+   * @param lossRate      Probability that a packet is dropped
+   * @param reorderRate   Probability that a packet is delivered late
+   * @param seed          Seed of the loss and reordering decisions
+   */
+  public LoopbackLink(int mtu, long latencyMicros, double lossRate, double reorderRate, long seed) {
+    this.mtu = mtu;
+    this.latencyMicros = latencyMicros;
+    this.lossRate = lossRate;
+    this.reorderRate = reorderRate;
+    this.random = new Random(seed);
+  }
+
+  /**
+   * Delivers packets until nothing is left in flight
+   */
+  public void run() {
+    Event event;
+    while ((event = events.poll()) != null) {
+      now = event.time;
+      event.action.run();
+    }
+  }
+
+  @Override
+  public long now() {
+    return now / 1000;
+  }
+
+  @Override
+  public void schedule(Runnable task, long delayMillis) {
+    schedule(delayMillis * 1000, task);
+  }
+
+  public long getTimeMicros() {
+    return now;
+  }
+
+  public int getPacketsSent() {
+    return packetsSent;
+  }
+
+  public int getPacketsLost() {
+    return packetsLost;
+  }
+
+  private void schedule(long delay, Runnable action) {
+    events.add(new Event(now + delay, nextEventId++, action));
+  }
+}
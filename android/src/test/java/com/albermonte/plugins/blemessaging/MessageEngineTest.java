@@ -0,0 +1,358 @@
+package com.albermonte.plugins.blemessaging;
+
+import static com.albermonte.plugins.blemessaging.Peer.text;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MessageEngineTest {
+
+  @Test
+  public void deliversMessagesAtEveryMtu() {
+    for (int mtu : new int[] { Utils.DEFAULT_MTU, 185, Utils.MAX_MTU }) {
+      LoopbackLink link = new LoopbackLink(mtu);
+      Peer sender = new Peer("a", link.a);
+      Peer receiver = new Peer("b", link.b);
+      List<String> messages = new ArrayList<>();
+      for (int length : new int[] { 1, 100, 5000, 60000 }) {
+        messages.add(text(length));
+        sender.send(text(length));
+      }
+      link.run();
+
+      assertEquals("MTU " + mtu, messages, receiver.received);
+      assertEquals(messages.size(), sender.sent);
+      assertTrue(receiver.errors.isEmpty());
+      assertTrue(sender.engine.isIdle());
+    }
+  }
+
+  @Test
+  public void deliversBinaryDataUnchanged() {
+    LoopbackLink link = new LoopbackLink(Utils.DEFAULT_MTU);
+    Peer sender = new Peer("a", link.a);
+    Peer receiver = new Peer("b", link.b);
+    // Every byte value, including sequences that are not valid UTF-8
+    byte[] data = new byte[1000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 7);
+    }
+    sender.send(data, true);
+    sender.send("text");
+    link.run();
+
+    assertEquals(1, receiver.receivedData.size());
+    assertArrayEquals(data, receiver.receivedData.get(0));
+    assertEquals(Collections.singletonList("text"), receiver.received);
+    // Binary frames are filled up to the packet size
+    int payloadPerFrame = Utils.getMaxPayloadSize(Utils.DEFAULT_MTU) - FrameCodec.HEADER_SIZE;
+    int firstPayload = Utils.getMaxPayloadSize(Utils.DEFAULT_MTU) - FrameCodec.FIRST_HEADER_SIZE;
+    int frames = 1 + (data.length - firstPayload + payloadPerFrame - 1) / payloadPerFrame;
+    assertEquals(frames + 1, link.getPacketsSent());
+  }
+
+  @Test
+  public void exchangesMessagesInBothDirections() {
+    LoopbackLink link = new LoopbackLink(185);
+    Peer a = new Peer("a", link.a);
+    Peer b = new Peer("b", link.b);
+    for (int i = 0; i < 10; i++) {
+      a.send("from a " + i + text(300));
+      b.send("from b " + i + text(700));
+    }
+    link.run();
+
+    assertEquals(10, a.received.size());
+    assertEquals(10, b.received.size());
+    for (int i = 0; i < 10; i++) {
+      assertEquals("from b " + i + text(700), a.received.get(i));
+      assertEquals("from a " + i + text(300), b.received.get(i));
+    }
+  }
+
+  @Test
+  public void throughputFollowsPacketLatency() {
+    LoopbackLink link = new LoopbackLink(247, 7500, 0, 0, 1);
+    Peer sender = new Peer("a", link.a);
+    Peer receiver = new Peer("b", link.b);
+    String message = text(20000);
+    sender.send(message);
+    link.run();
+
+    assertEquals(1, receiver.received.size());
+    assertEquals(link.getPacketsSent() * 7500L, link.getTimeMicros());
+    double bytesPerSecond = message.getBytes(StandardCharsets.UTF_8).length * 1e6 / link.getTimeMicros();
+    // Frame headers and UTF-8 boundaries cost a few bytes per packet
+    assertTrue(bytesPerSecond > 0.9 * Utils.getMaxPayloadSize(247) * 1e6 / 7500);
+  }
+
+  @Test
+  public void lostPacketsNeverCorruptMessages() {
+    LoopbackLink link = new LoopbackLink(100, 1000, 0.05, 0, 42);
+    Peer sender = new Peer("a", link.a);
+    Peer receiver = new Peer("b", link.b);
+    List<String> messages = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      messages.add(i + ":" + text(50 + i * 20));
+      sender.send(messages.get(i));
+    }
+    link.run();
+
+    assertTrue(link.getPacketsLost() > 0);
+    assertTrue(receiver.received.size() < messages.size());
+    for (String message : receiver.received) {
+      assertTrue(messages.contains(message));
+    }
+  }
+
+  @Test
+  public void reorderedPacketsNeverCorruptMessages() {
+    LoopbackLink link = new LoopbackLink(100, 1000, 0, 0.1, 7);
+    Peer sender = new Peer("a", link.a);
+    Peer receiver = new Peer("b", link.b);
+    List<String> messages = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      messages.add(i + ":" + text(50 + i * 20));
+      sender.send(messages.get(i));
+    }
+    link.run();
+
+    assertFalse(receiver.errors.isEmpty());
+    for (String message : receiver.received) {
+      assertTrue(messages.contains(message));
+    }
+  }
+
+  @Test
+  public void talksToPeersThatPredateFraming() {
+    LoopbackLink link = new LoopbackLink(Utils.DEFAULT_MTU);
+    Peer sender = new Peer("a", link.a);
+    List<byte[]> packets = new ArrayList<>();
+    link.b.setListener(new Transport.Listener() {
+      @Override
+      public void onPacketSent() {}
+
+      @Override
+      public void onPacketFailed(String error) {}
+
+      @Override
+      public void onPacketReceived(byte[] packet) {
+        packets.add(packet);
+      }
+    });
+    sender.engine.awaitPeerCapabilities();
+    String message = text(500);
+    sender.send(message);
+    sender.send(new byte[] { 1, 2, 3 }, true);
+    link.run();
+    assertEquals(0, link.getPacketsSent());
+
+    // Like the iOS implementation, which has no capabilities characteristic
+    sender.engine.setPeerCapabilities(null);
+    link.run();
+    assertEquals(1, sender.sent);
+    assertEquals(1, sender.failed);
+    assertTrue(FrameCodec.isEomMarker(packets.get(packets.size() - 1)));
+    ByteArrayOutputStream joined = new ByteArrayOutputStream();
+    for (byte[] chunk : packets.subList(0, packets.size() - 1)) {
+      // Each chunk is valid text on its own
+      assertArrayEquals(chunk, new String(chunk, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8));
+      joined.write(chunk, 0, chunk.length);
+    }
+    assertArrayEquals(message.getBytes(StandardCharsets.UTF_8), joined.toByteArray());
+
+    // Their chunks may split code points, they are joined at the marker
+    Peer receiver = new Peer("b", new LoopbackLink(Utils.DEFAULT_MTU).b);
+    receiver.engine.setPeerCapabilities(null);
+    byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+    for (int offset = 0; offset < payload.length; offset += 7) {
+      receiver.engine.onPacketReceived(Arrays.copyOfRange(payload, offset, Math.min(offset + 7, payload.length)));
+    }
+    receiver.engine.onPacketReceived(FrameCodec.encodeEomMarker());
+    assertEquals(Collections.singletonList(message), receiver.received);
+  }
+
+  @Test
+  public void rejectsMessagesTheReceiverWouldDrop() {
+    LoopbackLink link = new LoopbackLink(Utils.MAX_MTU);
+    Peer sender = new Peer("a", link.a);
+    Peer receiver = new Peer("b", link.b);
+    sender.engine.setCompressor(new PayloadCompressor(6, PayloadCompressor.DEFAULT_THRESHOLD));
+    sender.engine.setPeerCapabilities(new byte[] { MessageEngine.CAPABILITY_DEFLATE });
+    byte[] largest = new byte[MessageEngine.MAX_MESSAGE_SIZE];
+    sender.send(largest, true);
+    // Deflates to a few KB, but the receiver inflates it before checking
+    for (byte[] payload : new byte[][] { new byte[MessageEngine.MAX_MESSAGE_SIZE + 1], new byte[1500000] }) {
+      try {
+        sender.send(payload, true);
+        fail();
+      } catch (RuntimeException e) {
+        assertTrue(e.getMessage().contains("too large"));
+      }
+    }
+    link.run();
+
+    assertEquals(1, sender.sent);
+    assertArrayEquals(largest, receiver.receivedData.get(0));
+    assertTrue(receiver.errors.isEmpty());
+  }
+
+  @Test
+  public void shortMessagesOvertakeLargeOnesWhenInterleaved() {
+    String large = text(20000);
+    String medium = text(3000);
+
+    LoopbackLink plainLink = new LoopbackLink(Utils.DEFAULT_MTU);
+    Peer plainSender = new Peer("a", plainLink.a);
+    Peer plainReceiver = new Peer("b", plainLink.b);
+    plainSender.send(large);
+    plainSender.send(medium);
+    plainSender.send("short");
+    plainLink.run();
+
+    LoopbackLink link = new LoopbackLink(Utils.DEFAULT_MTU);
+    Peer sender = new Peer("a", link.a);
+    Peer receiver = new Peer("b", link.b);
+    sender.engine.setPeerCapabilities(MessageEngine.encodeCapabilities(null));
+    sender.send(large);
+    sender.send(medium);
+    sender.send("short");
+    link.run();
+
+    assertEquals(Arrays.asList(large, medium, "short"), plainReceiver.received);
+    assertEquals(Arrays.asList("short", medium, large), receiver.received);
+    assertTrue(receiver.errors.isEmpty());
+    assertEquals(3, sender.sent);
+    assertEquals(plainLink.getPacketsSent(), link.getPacketsSent());
+    assertTrue(sender.engine.isIdle());
+  }
+
+  @Test
+  public void realtimeMessagesPreemptBulkOnes() {
+    String upload = text(20000);
+    String log = text(20000);
+
+    LoopbackLink plainLink = new LoopbackLink(Utils.DEFAULT_MTU);
+    Peer plainSender = new Peer("a", plainLink.a);
+    Peer plainReceiver = new Peer("b", plainLink.b);
+    plainSender.send(upload, MessageEngine.PRIORITY_BULK);
+    plainSender.send(log, MessageEngine.PRIORITY_BULK);
+    plainSender.send("ping", MessageEngine.PRIORITY_REALTIME);
+    plainLink.run();
+
+    LoopbackLink link = new LoopbackLink(Utils.DEFAULT_MTU);
+    Peer sender = new Peer("a", link.a);
+    Peer receiver = new Peer("b", link.b);
+    sender.engine.setPeerCapabilities(MessageEngine.encodeCapabilities(null));
+    sender.send(upload, MessageEngine.PRIORITY_BULK);
+    sender.send(log, MessageEngine.PRIORITY_NORMAL);
+    sender.send("ping", MessageEngine.PRIORITY_REALTIME);
+    link.run();
+
+    // Without interleaving the ping only waits for the message being sent
+    assertEquals(Arrays.asList(upload, "ping", log), plainReceiver.received);
+    // The normal message gets most of the frames and overtakes the upload
+    assertEquals(Arrays.asList("ping", log, upload), receiver.received);
+    assertEquals(3, sender.sent);
+    assertTrue(receiver.errors.isEmpty());
+    assertTrue(sender.engine.isIdle());
+  }
+
+  @Test
+  public void realtimeMessagesNeverWaitForReassemblerRoom() {
+    byte[] upload = new byte[MessageEngine.MAX_MESSAGE_SIZE];
+    byte[] report = new byte[MessageEngine.REALTIME_RESERVE];
+    Arrays.fill(report, (byte) 1);
+
+    LoopbackLink link = new LoopbackLink(Utils.MAX_MTU);
+    Peer sender = new Peer("a", link.a);
+    List<Integer> order = new ArrayList<>();
+    Peer receiver = new Peer("b", link.b) {
+      @Override
+      public void onMessage(IncomingMessage message) {
+        super.onMessage(message);
+        order.add(message.isBinary() ? message.getData().length : message.getText().length());
+      }
+    };
+    sender.engine.setPeerCapabilities(MessageEngine.encodeCapabilities(null));
+    sender.send(upload, true, MessageEngine.PRIORITY_BULK);
+    // Would fill the receiver along with the upload, so it waits for it
+    sender.send(report, true, MessageEngine.PRIORITY_NORMAL);
+    sender.send("ping", MessageEngine.PRIORITY_REALTIME);
+    link.run();
+
+    assertEquals(Arrays.asList(4, upload.length, report.length), order);
+    assertArrayEquals(upload, receiver.receivedData.get(0));
+    assertArrayEquals(report, receiver.receivedData.get(1));
+    assertTrue(receiver.errors.isEmpty());
+    assertEquals(3, sender.sent);
+  }
+
+  @Test
+  public void oneEncodingServesPeersThatNegotiatedAlike() {
+    String message = text(3000);
+    byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+    PayloadCompressor compressor = new PayloadCompressor(6, PayloadCompressor.DEFAULT_THRESHOLD);
+    List<LoopbackLink> links = new ArrayList<>();
+    List<Peer> senders = new ArrayList<>();
+    List<Peer> receivers = new ArrayList<>();
+    for (int mtu : new int[] { 23, 185, Utils.DEFAULT_MTU }) {
+      LoopbackLink link = new LoopbackLink(mtu);
+      Peer sender = new Peer("a", link.a);
+      sender.engine.setCompressor(compressor);
+      sender.engine.setPeerCapabilities(MessageEngine.encodeCapabilities(null));
+      links.add(link);
+      senders.add(sender);
+      receivers.add(new Peer("b", link.b));
+    }
+    assertEquals(senders.get(0).engine.getEncoding(), senders.get(2).engine.getEncoding());
+
+    // Frames are cut for each link from the same compressed payload
+    MessageEngine.Payload encoded = senders.get(0).engine.encode(payload, false);
+    assertTrue(encoded.data.length < payload.length);
+    for (int i = 0; i < senders.size(); i++) {
+      senders.get(i).engine.send(encoded, MessageEngine.PRIORITY_NORMAL, null);
+      links.get(i).run();
+      assertEquals(Collections.singletonList(message), receivers.get(i).received);
+    }
+  }
+
+  @Test
+  public void closeRejectsInterleavedMessagesOnce() {
+    LoopbackLink link = new LoopbackLink(185);
+    Peer sender = new Peer("a", link.a);
+    new Peer("b", link.b);
+    sender.engine.setPeerCapabilities(MessageEngine.encodeCapabilities(null));
+    for (int i = 0; i < MessageEngine.MAX_INTERLEAVED + 2; i++) {
+      sender.send(text(1000));
+    }
+    sender.engine.close("Device disconnected");
+    link.run();
+
+    assertEquals(MessageEngine.MAX_INTERLEAVED + 2, sender.failed);
+    assertEquals(0, sender.sent);
+    assertTrue(sender.engine.isIdle());
+  }
+
+  @Test
+  public void closeRejectsQueuedMessages() {
+    LoopbackLink link = new LoopbackLink(185);
+    Peer sender = new Peer("a", link.a);
+    new Peer("b", link.b);
+    sender.send(text(1000));
+    sender.send(text(1000));
+    sender.engine.close("Device disconnected");
+    link.run();
+
+    assertEquals(2, sender.failed);
+    assertEquals(0, sender.sent);
+    assertTrue(sender.engine.isIdle());
+  }
+}
@@ -0,0 +1,90 @@
+package com.albermonte.plugins.blemessaging;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class PayloadCompressorTest {
+
+  @Test
+  public void compressesOnlyForPeersThatSupportIt() {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < 40; i++) {
+      json.append("{\"id\":").append(i).append(",\"type\":\"position\",\"lat\":41.38,\"lon\":2.17},");
+    }
+    String message = json.append("{}]").toString();
+    byte[] data = message.getBytes(StandardCharsets.UTF_8);
+
+    LoopbackLink plainLink = new LoopbackLink(Utils.DEFAULT_MTU);
+    Peer plainSender = new Peer("a", plainLink.a);
+    Peer plainReceiver = new Peer("b", plainLink.b);
+    // An older peer never advertises CAPABILITY_DEFLATE
+    plainSender.engine.setCompressor(new PayloadCompressor(6, PayloadCompressor.DEFAULT_THRESHOLD));
+    plainSender.send(message);
+    plainLink.run();
+
+    LoopbackLink link = new LoopbackLink(Utils.DEFAULT_MTU);
+    Peer sender = new Peer("a", link.a);
+    Peer receiver = new Peer("b", link.b);
+    sender.engine.setCompressor(new PayloadCompressor(6, PayloadCompressor.DEFAULT_THRESHOLD));
+    sender.engine.setPeerCapabilities(new byte[] { MessageEngine.CAPABILITY_DEFLATE });
+    sender.send(message);
+    sender.send(data, true);
+    sender.send("short");
+    link.run();
+
+    assertEquals(Collections.singletonList(message), plainReceiver.received);
+    assertEquals(Arrays.asList(message, "short"), receiver.received);
+    assertArrayEquals(data, receiver.receivedData.get(0));
+    assertTrue(receiver.errors.isEmpty());
+    assertTrue(link.getPacketsSent() < plainLink.getPacketsSent());
+    assertEquals(0, sender.engine.encode("short".getBytes(StandardCharsets.UTF_8), false).flags);
+  }
+
+  @Test
+  public void sharedDictionaryShrinksShortMessages() {
+    byte[] dictionary = "{\"id\":0,\"type\":\"position\",\"lat\":41.38,\"lon\":2.17,\"accuracy\":5}"
+        .getBytes(StandardCharsets.UTF_8);
+    String message = "{\"id\":7,\"type\":\"position\",\"lat\":41.39,\"lon\":2.16,\"accuracy\":4}";
+    byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+
+    LoopbackLink link = new LoopbackLink(Utils.DEFAULT_MTU);
+    Peer a = new Peer("a", link.a);
+    Peer b = new Peer("b", link.b);
+    a.engine.setCompressor(new PayloadCompressor(9, PayloadCompressor.DEFAULT_THRESHOLD, dictionary));
+    b.engine.setCompressor(new PayloadCompressor(9, PayloadCompressor.DEFAULT_THRESHOLD, dictionary));
+    a.engine.setPeerCapabilities(MessageEngine.encodeCapabilities(
+        new PayloadCompressor(9, PayloadCompressor.DEFAULT_THRESHOLD, dictionary)));
+    assertTrue(a.engine.hasSharedDictionary());
+
+    MessageEngine.Payload encoded = a.engine.encode(payload, false);
+    assertNotEquals(0, encoded.flags & FrameCodec.FLAG_DICTIONARY);
+    assertTrue(encoded.data.length * 2 <= payload.length);
+    a.send(message);
+    link.run();
+    assertEquals(Collections.singletonList(message), b.received);
+
+    // A different dictionary on the other side falls back to plain deflate
+    a.engine.setPeerCapabilities(MessageEngine.encodeCapabilities(
+        new PayloadCompressor(9, 0, "other".getBytes(StandardCharsets.UTF_8))));
+    assertFalse(a.engine.hasSharedDictionary());
+    assertEquals(0, a.engine.encode(payload, false).flags);
+  }
+
+  @Test
+  public void inflateRejectsOversizedPayloads() {
+    byte[] zeros = new byte[100000];
+    byte[] compressed = new PayloadCompressor(9, 0).compress(zeros, false);
+    assertArrayEquals(zeros, PayloadCompressor.inflate(compressed, 0, compressed.length, zeros.length, null));
+    try {
+      PayloadCompressor.inflate(compressed, 0, compressed.length, zeros.length - 1, null);
+      fail();
+    } catch (RuntimeException e) {
+      assertTrue(e.getMessage().contains("exceeds"));
+    }
+  }
+}
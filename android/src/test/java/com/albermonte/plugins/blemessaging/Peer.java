@@ -0,0 +1,77 @@
+package com.albermonte.plugins.blemessaging;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends and receives messages through a MessageEngine, counting what the
+ * engine reports
+ */
+class Peer implements MessageEngine.Listener {
+  final List<String> received = new ArrayList<>();
+  final List<byte[]> receivedData = new ArrayList<>();
+  final List<String> errors = new ArrayList<>();
+  int sent = 0;
+  int failed = 0;
+  final MessageEngine engine;
+
+  Peer(String name, Transport transport) {
+    engine = new MessageEngine(name, transport, this);
+  }
+
+  void send(String message) {
+    send(message.getBytes(StandardCharsets.UTF_8), false);
+  }
+
+  void send(byte[] payload, boolean binary) {
+    send(payload, binary, MessageEngine.PRIORITY_NORMAL);
+  }
+
+  void send(String message, int priority) {
+    send(message.getBytes(StandardCharsets.UTF_8), false, priority);
+  }
+
+  void send(byte[] payload, boolean binary, int priority) {
+    engine.send(payload, binary, priority, new SendCallback() {
+      @Override
+      public void onSent() {
+        sent++;
+      }
+
+      @Override
+      public void onError(String message) {
+        failed++;
+      }
+    });
+  }
+
+  @Override
+  public void onMessage(IncomingMessage message) {
+    if (message.isBinary()) {
+      receivedData.add(message.getData());
+    } else {
+      received.add(message.getText());
+    }
+  }
+
+  @Override
+  public void onError(String error) {
+    errors.add(error);
+  }
+
+  @Override
+  public void onIdle() {}
+
+  /**
+   * @return Text of about length chars mixing 1 to 4 byte UTF-8 code points
+   */
+  static String text(int length) {
+    String[] alphabet = { "a", "é", "€", "😀", "漢", "z" };
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; builder.length() < length; i++) {
+      builder.append(alphabet[i % alphabet.length]);
+    }
+    return builder.toString();
+  }
+}
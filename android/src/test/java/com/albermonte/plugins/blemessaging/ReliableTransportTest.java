@@ -0,0 +1,127 @@
+package com.albermonte.plugins.blemessaging;
+
+import static com.albermonte.plugins.blemessaging.Peer.text;
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ReliableTransportTest {
+
+  @Test
+  public void repairsLossAndReordering() {
+    LoopbackLink link = new LoopbackLink(100, 1000, 0.05, 0.05, 42);
+    ReliableTransport reliableA = new ReliableTransport(link.a, link);
+    ReliableTransport reliableB = new ReliableTransport(link.b, link);
+    reliableA.setEnabled(true);
+    reliableB.setEnabled(true);
+    Peer a = new Peer("a", reliableA);
+    Peer b = new Peer("b", reliableB);
+    List<String> messages = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      messages.add(i + ":" + text(50 + i * 20));
+      a.send(messages.get(i));
+      b.send(messages.get(i));
+    }
+    link.run();
+
+    assertTrue(link.getPacketsLost() > 0);
+    assertEquals(messages, b.received);
+    assertEquals(messages, a.received);
+    assertTrue(a.errors.isEmpty() && b.errors.isEmpty());
+    // Only missing packets are sent again
+    int retransmissions = reliableA.getRetransmissionCount() + reliableB.getRetransmissionCount();
+    assertTrue(retransmissions > 0);
+    assertTrue(retransmissions < 3 * link.getPacketsLost());
+  }
+
+  @Test
+  public void keepsUnacknowledgedThroughput() {
+    String message = text(20000);
+    LoopbackLink plainLink = new LoopbackLink(247, 7500, 0, 0, 1);
+    new Peer("a", plainLink.a).send(message);
+    new Peer("b", plainLink.b);
+    plainLink.run();
+
+    LoopbackLink link = new LoopbackLink(247, 7500, 0, 0, 1);
+    ReliableTransport reliableA = new ReliableTransport(link.a, link);
+    reliableA.setEnabled(true);
+    Peer sender = new Peer("a", reliableA);
+    Peer receiver = new Peer("b", new ReliableTransport(link.b, link));
+    sender.send(message);
+    link.run();
+
+    assertEquals(Collections.singletonList(message), receiver.received);
+    assertEquals(0, reliableA.getRetransmissionCount());
+    // Acknowledgements travel the other way and never stall the sender
+    assertTrue(link.getTimeMicros() < 1.1 * plainLink.getTimeMicros());
+  }
+
+  @Test
+  public void reportsMessagesSentOnceAcknowledged() {
+    LoopbackLink link = new LoopbackLink(Utils.DEFAULT_MTU, 7500, 0, 0, 1);
+    ReliableTransport reliable = new ReliableTransport(link.a, link);
+    reliable.setEnabled(true);
+    MessageEngine sender = new Peer("a", reliable).engine;
+    Peer receiver = new Peer("b", new ReliableTransport(link.b, link));
+    long[] sentAt = { -1 };
+    sender.send("hello".getBytes(StandardCharsets.UTF_8), false, MessageEngine.PRIORITY_NORMAL,
+        new SendCallback() {
+          @Override
+          public void onSent() {
+            sentAt[0] = link.getTimeMicros();
+          }
+
+          @Override
+          public void onError(String message) {
+            fail(message);
+          }
+        });
+    link.run();
+
+    assertEquals(Collections.singletonList("hello"), receiver.received);
+    // Written after one latency, acknowledged after the delayed ack made
+    // its way back
+    assertTrue(sentAt[0] >= 2 * 7500 + 20000);
+  }
+
+  @Test
+  public void givesUpOnSilentPeers() {
+    LoopbackLink link = new LoopbackLink(Utils.DEFAULT_MTU, 1000, 1, 0, 1);
+    ReliableTransport reliable = new ReliableTransport(link.a, link);
+    reliable.setEnabled(true);
+    Peer sender = new Peer("a", reliable);
+    new Peer("b", new ReliableTransport(link.b, link));
+    // More frames than the window, the rest of the messages stay queued
+    sender.send(text(50));
+    sender.send(text(2000));
+    sender.send(text(50));
+    link.run();
+
+    assertEquals(0, sender.sent);
+    assertEquals(3, sender.failed);
+    assertTrue(reliable.getRetransmissionCount() >= ReliableTransport.MAX_RETRANSMISSIONS);
+
+    // Later messages are refused right away
+    sender.send(text(50));
+    link.run();
+    assertEquals(4, sender.failed);
+  }
+
+  @Test
+  public void passesThroughUntilEnabled() {
+    LoopbackLink link = new LoopbackLink(Utils.DEFAULT_MTU);
+    // An older peer only understands plain frames
+    Peer sender = new Peer("a", new ReliableTransport(link.a, link));
+    Peer receiver = new Peer("b", link.b);
+    sender.send(text(500));
+    link.run();
+
+    assertEquals(Collections.singletonList(text(500)), receiver.received);
+    assertEquals(1, sender.sent);
+  }
+}
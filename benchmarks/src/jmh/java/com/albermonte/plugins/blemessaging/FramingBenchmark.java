@@ -0,0 +1,88 @@
+package com.albermonte.plugins.blemessaging;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encode, chunk and reassemble path of a single message. MTU 23 is left out,
+ * its 65535 frame limit caps messages at about 512 KB.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FramingBenchmark {
+    @Param({ "64", "1024", "16384", "262144", "1048576" })
+    int size;
+
+    @Param({ "185", "247", "517" })
+    int mtu;
+
+    @Param({ "ascii", "latin", "mixed" })
+    String mix;
+
+    private String message;
+    private byte[][] frames;
+    private MessageReassembler reassembler;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        message = Payloads.text(mix, size);
+        List<byte[]> encoded = new ArrayList<>();
+        OutgoingMessage outgoing = new OutgoingMessage(message, 0, Payloads.maxPayloadSize(mtu), null);
+        while (outgoing.hasNextFrame()) {
+            encoded.add(outgoing.nextFrame());
+        }
+        frames = encoded.toArray(new byte[0][]);
+        reassembler = new MessageReassembler();
+    }
+
+    /**
+     * UTF-8 encoding and frame cutting, as done before each write
+     */
+    @Benchmark
+    public void chunk(Blackhole blackhole) {
+        OutgoingMessage outgoing = new OutgoingMessage(message, 0, Payloads.maxPayloadSize(mtu), null);
+        while (outgoing.hasNextFrame()) {
+            blackhole.consume(outgoing.nextFrame());
+        }
+    }
+
+    /**
+     * Frame parsing, copying into the pooled buffer and UTF-8 decoding
+     */
+    @Benchmark
+    public IncomingMessage reassemble() {
+        IncomingMessage result = null;
+        for (byte[] frame : frames) {
+            result = reassembler.onFrame("peer", frame);
+        }
+        return result;
+    }
+
+    /**
+     * Both sides of a transfer, without the link
+     */
+    @Benchmark
+    public IncomingMessage roundTrip() {
+        OutgoingMessage outgoing = new OutgoingMessage(message.getBytes(StandardCharsets.UTF_8), 0, 0,
+                Payloads.maxPayloadSize(mtu), null);
+        IncomingMessage result = null;
+        while (outgoing.hasNextFrame()) {
+            result = reassembler.onFrame("peer", outgoing.nextFrame());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,55 @@
+package com.albermonte.plugins.blemessaging;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Messages used by the benchmarks
+ */
+final class Payloads {
+    private static final String[] ASCII = { "a", "b", "c", " " };
+    private static final String[] LATIN = { "á", "é", "ñ", "ü" };
+    private static final String[] MIXED = { "a", "é", "€", "😀", "漢", " " };
+
+    private Payloads() {}
+
+    /**
+     * @param mix   ascii (1 byte code points), latin (2 bytes) or mixed (1 to 4
+     *              bytes)
+     * @param bytes UTF-8 size of the text, approximate for multi byte mixes
+     */
+    static String text(String mix, int bytes) {
+        String[] alphabet;
+        switch (mix) {
+            case "ascii":
+                alphabet = ASCII;
+                break;
+            case "latin":
+                alphabet = LATIN;
+                break;
+            case "mixed":
+                alphabet = MIXED;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mix: " + mix);
+        }
+        StringBuilder builder = new StringBuilder();
+        int length = 0;
+        for (int i = 0; ; i++) {
+            String codePoint = alphabet[i % alphabet.length];
+            int size = codePoint.getBytes(StandardCharsets.UTF_8).length;
+            if (length + size > bytes) {
+                break;
+            }
+            builder.append(codePoint);
+            length += size;
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return The ATT payload size for an MTU, as Utils.getMaxPayloadSize
+     */
+    static int maxPayloadSize(int mtu) {
+        return mtu - 3;
+    }
+}
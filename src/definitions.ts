@@ -1,14 +1,34 @@
 import { PluginListenerHandle } from "@capacitor/core";
 
 export interface BLEMessagingPlugin {
-  startAdvertising(options: { serviceUUID: string }): Promise<void>;
+  /**
+   * Start advertising the specified service UUID.
+   * @param options.serviceUUID The service UUID to advertise.
+   * @param options.useL2cap Publish an L2CAP channel that centrals can open for large messages (8 KB and up). Android 10+ only. Defaults to true.
+   * @param options.compressionLevel Deflate level (1-9) applied to messages sent to peers that advertise support for it. Defaults to 0, no compression.
+   * @param options.compressionThreshold Messages shorter than this many bytes are sent uncompressed. Defaults to 128.
+   * @param options.compressionDictionary Sample text, such as typical messages, that primes compression so that short messages shrink too. Only used with peers given the same dictionary, and enables compression at level 6 unless compressionLevel is set. Up to 32 KB, the end of longer text is kept.
+   */
+  startAdvertising(options: { serviceUUID: string, useL2cap?: boolean, compressionLevel?: number, compressionThreshold?: number, compressionDictionary?: string }): Promise<void>;
   stopAdvertising(): Promise<void>;
   /**
    * Start scanning for devices advertising the specified service UUID.
    * @param options.serviceUUID The service UUID to scan for.
    * @param options.scanTimeout The number of seconds to scan for devices. If not provided, the default is 30 seconds. Set to 0 to scan indefinitely.
+   * @param options.writeWithoutResponse Send messages with back to back writes without response, falling back to acknowledged writes when the Bluetooth stack is busy. Defaults to true.
+   * @param options.useL2cap Open an L2CAP channel to peripherals that publish one, large messages (8 KB and up) are then sent through it. Android 10+ only. Defaults to true.
+   * @param options.compressionLevel Deflate level (1-9) applied to messages sent to peers that advertise support for it. Defaults to 0, no compression.
+   * @param options.compressionThreshold Messages shorter than this many bytes are sent uncompressed. Defaults to 128.
+   * @param options.compressionDictionary Sample text, such as typical messages, that primes compression so that short messages shrink too. Only used with peers given the same dictionary, and enables compression at level 6 unless compressionLevel is set. Up to 32 KB, the end of longer text is kept.
+   * @param options.scanMode Trades discovery speed for battery. Opportunistic only gets results from scans started by other apps. Defaults to lowLatency.
+   * @param options.reportDelay Milliseconds the Bluetooth controller may hold results before delivering them in a batch, which saves battery in crowded places. Ignored on devices without hardware batching. Defaults to 0, each result as it comes.
+   * @param options.deviceTimeout The number of seconds after which a device no longer seen while scanning is reported lost. Defaults to 10 seconds.
+   * @param options.minRssi Ignore advertisements weaker than this, in dBm.
+   * @param options.deviceUUIDs Only report devices with these UUIDs.
+   * @param options.manufacturerData Only report devices whose manufacturer data for companyId starts with data, comparing the bits set in mask. data and mask are base64 encoded. Matched by the Bluetooth controller when it supports it.
+   * @param options.serviceData Only report devices whose data for the service uuid starts with data, comparing the bits set in mask. data and mask are base64 encoded. Matched by the Bluetooth controller when it supports it.
    */
-  startScan(options: { serviceUUID: string, scanTimeout?: number }): Promise<void>;
+  startScan(options: { serviceUUID: string, scanTimeout?: number, writeWithoutResponse?: boolean, useL2cap?: boolean, compressionLevel?: number, compressionThreshold?: number, compressionDictionary?: string, scanMode?: 'lowLatency' | 'balanced' | 'lowPower' | 'opportunistic', reportDelay?: number, deviceTimeout?: number, minRssi?: number, deviceUUIDs?: string[], manufacturerData?: { companyId: number, data: string, mask?: string }, serviceData?: { uuid: string, data: string, mask?: string } }): Promise<void>;
   /**
    * Stop scanning for devices.
    */
@@ -24,11 +44,39 @@ export interface BLEMessagingPlugin {
    */
   disconnectFromDevice(options: { uuid: string }): Promise<void>;
   /**
-   * Send a message to a connected device.
+   * Send a message to a connected device. Messages over 960 KB are rejected unless they can go over an L2CAP channel.
    * @param options.to The UUID of the device to send the message to. You can get the UUID of a device from the onDeviceFound event.
    * @param options.message The message to send.
+   * @param options.priority How urgent the message is. Realtime messages are sent before anything else, interrupting longer messages between two chunks; normal and bulk messages share the remaining bandwidth four to one. Defaults to normal.
+   */
+  sendMessage(options: { to: string, message: string, priority?: 'realtime' | 'normal' | 'bulk' }): Promise<void>;
+  /**
+   * Send binary data to a connected device. The bytes are sent as is, base64 is only used to cross the JS bridge. Fails for devices running the iOS implementation, which only takes text.
+   * @param options.to The UUID of the device to send the data to. You can get the UUID of a device from the onDeviceFound event.
+   * @param options.data The data to send, base64 encoded.
+   * @param options.priority How urgent the data is, as in sendMessage. Defaults to normal.
+   */
+  sendData(options: { to: string, data: string, priority?: 'realtime' | 'normal' | 'bulk' }): Promise<void>;
+  /**
+   * Send a message to every connected central while advertising. The message is encoded once and sent to all of them at the same time, so it takes about as long as the slowest link. Resolves once every central has received it or failed.
+   * @param options.message The message to send.
+   * @param options.priority How urgent the message is, as in sendMessage. Defaults to normal.
    */
-  sendMessage(options: { to: string, message: string }): Promise<void>;
+  broadcastMessage(options: { message: string, priority?: 'realtime' | 'normal' | 'bulk' }): Promise<{ results: { uuid: string, sent: boolean, error?: string }[] }>;
+  /**
+   * Tune the link with a connected device. Large messages (4 KB and up) temporarily switch the link to high priority and 2M PHY when supported, and restore this profile once they are sent.
+   * @param options.uuid The UUID of the connected device.
+   * @param options.priority The connection priority. Only the central can request it, it is ignored on the peripheral.
+   * @param options.phy The preferred PHY. Fails if the device does not support it.
+   * @param options.autoBulkTransfer Whether large messages switch the link to its fastest profile while they are sent. Defaults to true.
+   */
+  setLinkProfile(options: { uuid: string, priority?: 'high' | 'balanced' | 'lowPower', phy?: '1M' | '2M' | 'coded', autoBulkTransfer?: boolean }): Promise<void>;
+  /**
+   * List the devices seen while scanning, nearest first. Signal strength is smoothed over several advertisements, so a single noisy reading does not reorder the list.
+   * @param options.limit The maximum number of devices returned. Defaults to all of them.
+   * @returns Devices seen within the last deviceTimeout seconds, with their smoothed signal strength in dBm and whether they are connected.
+   */
+  getNearbyDevices(options?: { limit?: number }): Promise<{ devices: { uuid: string, rssi: number, connected: boolean }[] }>;
   /**
    * Check if the device is currently advertising.
   */
@@ -49,13 +97,27 @@ export interface BLEMessagingPlugin {
    * @param uuid The UUID of the device that was found. Use this UUID to connect to the device and send messages to it.
    */
   addListener(eventName: 'onDeviceFound', listenerFunc: ({ uuid }: { uuid: string }) => void): Promise<PluginListenerHandle>;
+  /**
+   * Emitted at most twice a second while scanning, with every change since the last one.
+   * @param found Devices seen for the first time, or again after being lost, with their smoothed signal strength in dBm.
+   * @param updated Devices seen again, with their smoothed signal strength in dBm.
+   * @param lost UUIDs of devices not seen for deviceTimeout seconds.
+   */
+  addListener(eventName: 'onDevicesChanged', listenerFunc: ({ found, updated, lost }: { found: { uuid: string, rssi: number, connected: boolean }[], updated: { uuid: string, rssi: number, connected: boolean }[], lost: string[] }) => void): Promise<PluginListenerHandle>;
   /**
    * Emitted when a device is connected.
    * @param uuid The UUID of the device that was connected.
+   * @param mtu The ATT MTU negotiated with the device. Each packet carries up to `mtu - 3` bytes.
    */
-  addListener(eventName: 'onDeviceConnected', listenerFunc: ({ uuid }: { uuid: string }) => void): Promise<PluginListenerHandle>;
+  addListener(eventName: 'onDeviceConnected', listenerFunc: ({ uuid, mtu }: { uuid: string, mtu: number }) => void): Promise<PluginListenerHandle>;
   addListener(eventName: 'onDeviceDisconnected', listenerFunc: ({ uuid }: { uuid: string }) => void): Promise<PluginListenerHandle>;
-  addListener(eventName: 'onMessageReceived', listenerFunc: ({ from, message, timestamp }: { from: string, message: string, timestamp: number }) => void): Promise<PluginListenerHandle>;
+  /**
+   * Emitted when a message or binary data is received.
+   * @param from The UUID of the device that sent it.
+   * @param message The text, when sent with sendMessage.
+   * @param data The bytes, base64 encoded, when sent with sendData.
+   */
+  addListener(eventName: 'onMessageReceived', listenerFunc: ({ from, message, data, timestamp }: { from: string, message?: string, data?: string, timestamp: number }) => void): Promise<PluginListenerHandle>;
   removeAllListeners(): Promise<void>;
   /**
    * Cleanup the plugin. This is useful to call when the app is closed or when the plugin is no longer needed.
@@ -36,6 +36,18 @@ export class BLEMessagingWeb extends WebPlugin implements BLEMessagingPlugin {
     throw this.unimplemented('Not implemented on web.');
   }
 
+  async sendData(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async broadcastMessage(): Promise<{ results: { uuid: string, sent: boolean, error?: string }[] }> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async getNearbyDevices(): Promise<{ devices: { uuid: string, rssi: number, connected: boolean }[] }> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
   async connectToDevice(): Promise<void> {
     throw this.unimplemented('Not implemented on web.');
   }
@@ -44,6 +56,10 @@ export class BLEMessagingWeb extends WebPlugin implements BLEMessagingPlugin {
     throw this.unimplemented('Not implemented on web.');
   }
 
+  async setLinkProfile(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
   async isAdvertising(): Promise<{ isAdvertising: boolean }> {
     throw this.unimplemented('Not implemented on web.');
   }